@@ -0,0 +1,85 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import lath.integrity.hashforest.DigestHashValue;
+import lath.integrity.hashforest.HashAlgorithm;
+import lath.integrity.util.FileUtil;
+
+/**
+ * Measures FileUtil.getHash for different file sizes and hash algorithms.
+ * The files are usually served from the page cache, so this measures the
+ * hashing path and not the storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileHashBenchmark {
+
+  @Param({"0", "1024", "131072", "16777216"})
+  public int fileSize;
+
+  @Param({"auto", "off"})
+  public String mappingMode;
+
+  @Param({"SHA-512", "SHA-256", "SHA-512/256", "SHA3-256"})
+  public String algorithmName;
+
+  private Path file;
+  private HashAlgorithm algorithm;
+
+  @Setup(Level.Trial)
+  public void createFile() throws IOException {
+    final byte[] content = new byte[fileSize];
+    new Random(fileSize).nextBytes(content);
+    file = Files.createTempFile("dip_integrity_bench", ".bin");
+    Files.write(file, content);
+    FileUtil.setMappingMode(FileUtil.MappingMode.fromString(mappingMode));
+    algorithm = HashAlgorithm.fromString(algorithmName);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public DigestHashValue getHash() throws IOException {
+    return FileUtil.getHash(file.toString(), algorithm);
+  }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import lath.integrity.error.InvalidInputException;
+import lath.integrity.hashforest.HashForest;
+import lath.integrity.hashforest.SHA512HashValue;
+
+/**
+ * Measures building hash forests and reading their roots for different
+ * numbers of leafs. Forests are built incrementally by update() and at once
+ * when a full forest is read (sequentially and in parallel). contains() is
+ * measured against a forest extended by one leaf, its node index is built
+ * on the first invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashForestBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  public int leafs;
+
+  private SHA512HashValue[] hashValues;
+  private String fullForest;
+  private HashForest<SHA512HashValue> forest;
+  private HashForest<SHA512HashValue> extendedForest;
+
+  @Setup(Level.Trial)
+  public void createLeafs() throws IOException, NoSuchAlgorithmException {
+    final Random random = new Random(leafs);
+    hashValues = new SHA512HashValue[leafs];
+    final HashForest<SHA512HashValue> hf = new HashForest<SHA512HashValue>();
+    for (int i = 0; i < leafs; ++i) {
+      final byte[] digest = new byte[64];
+      random.nextBytes(digest);
+      hashValues[i] = new SHA512HashValue(digest);
+      hf.update(hashValues[i]);
+    }
+    final StringWriter sw = new StringWriter();
+    hf.writeTo(sw);
+    fullForest = sw.toString();
+    forest = hf;
+    extendedForest = new HashForest<SHA512HashValue>();
+    for (final SHA512HashValue hashValue : hashValues) {
+      extendedForest.update(hashValue);
+    }
+    extendedForest.update(hashValues[0]);
+  }
+
+  @Benchmark
+  public boolean contains() {
+    return extendedForest.contains(forest);
+  }
+
+  @Benchmark
+  public List<SHA512HashValue> updateFull() {
+    final HashForest<SHA512HashValue> hf = new HashForest<SHA512HashValue>();
+    for (final SHA512HashValue hashValue : hashValues) {
+      hf.update(hashValue);
+    }
+    return hf.getRoots();
+  }
+
+  @Benchmark
+  public List<SHA512HashValue> updateRoots() {
+    final HashForest<SHA512HashValue> hf = new HashForest<SHA512HashValue>(HashForest.Mode.ROOTS);
+    for (final SHA512HashValue hashValue : hashValues) {
+      hf.update(hashValue);
+    }
+    return hf.getRoots();
+  }
+
+  @Benchmark
+  public List<SHA512HashValue> createForestSequential() throws IOException, InvalidInputException {
+    return createForest(false);
+  }
+
+  @Benchmark
+  public List<SHA512HashValue> createForestParallel() throws IOException, InvalidInputException {
+    return createForest(true);
+  }
+
+  private List<SHA512HashValue> createForest(final boolean parallel) throws IOException, InvalidInputException {
+    final HashForest<SHA512HashValue> hf = new HashForest<SHA512HashValue>();
+    hf.setParallel(parallel);
+    hf.readFrom(new StringReader(fullForest));
+    return hf.getRoots();
+  }
+
+}
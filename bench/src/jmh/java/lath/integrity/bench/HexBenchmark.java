@@ -0,0 +1,82 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import lath.integrity.hashforest.HashValue;
+import lath.integrity.util.HexUtil;
+
+/**
+ * Measures the hex conversion of a single SHA-512 digest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HexBenchmark {
+
+  private byte[] digest;
+  private String hexDigest;
+  private byte[] asciiDigest;
+  private final char[] chars = new char[128];
+  private final byte[] bytes = new byte[64];
+
+  @Setup(Level.Trial)
+  public void createDigest() {
+    digest = new byte[64];
+    new Random(64).nextBytes(digest);
+    hexDigest = HashValue.bytes2hex(digest);
+    asciiDigest = new byte[128];
+    HexUtil.encode(digest, 0, digest.length, asciiDigest, 0);
+  }
+
+  @Benchmark
+  public String bytes2hex() {
+    return HashValue.bytes2hex(digest);
+  }
+
+  @Benchmark
+  public byte[] hex2bytes() {
+    return HashValue.hex2bytes(hexDigest);
+  }
+
+  @Benchmark
+  public char[] encodeInto() {
+    HexUtil.encode(digest, 0, digest.length, chars, 0);
+    return chars;
+  }
+
+  @Benchmark
+  public byte[] decodeInto() {
+    HexUtil.decode(asciiDigest, 0, bytes.length, bytes, 0);
+    return bytes;
+  }
+
+}
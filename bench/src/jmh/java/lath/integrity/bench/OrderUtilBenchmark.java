@@ -0,0 +1,92 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import lath.integrity.error.InvalidInputException;
+import lath.integrity.util.ChecksumUtil;
+import lath.integrity.util.OrderUtil;
+
+/**
+ * Measures writing and reading the ordering information.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OrderUtilBenchmark {
+
+  @Param({"1000", "100000"})
+  public int identifiers;
+
+  private List<String> orderedIdentifiers;
+  private String serializedOrder;
+
+  private static OrderUtil createOrderUtil() throws NoSuchAlgorithmException {
+    return new OrderUtil(new ChecksumUtil(MessageDigest.getInstance("SHA-512")));
+  }
+
+  @Setup(Level.Trial)
+  public void createOrder() throws IOException, NoSuchAlgorithmException {
+    orderedIdentifiers = new ArrayList<String>();
+    orderedIdentifiers.add(OrderUtil.ORDERFILENAME);
+    for (int i = 0; i < identifiers; ++i) {
+      orderedIdentifiers.add("content/folder_" + (i / 100) + "/document_" + i + ".pdf");
+    }
+    serializedOrder = writeTo();
+  }
+
+  @Benchmark
+  public String writeTo() throws IOException, NoSuchAlgorithmException {
+    // the checksum provider accumulates, so every run needs a new object
+    final OrderUtil order = createOrderUtil();
+    for (final String identifier : orderedIdentifiers) {
+      order.add(identifier);
+    }
+    final StringWriter sw = new StringWriter();
+    order.writeTo(sw);
+    return sw.toString();
+  }
+
+  @Benchmark
+  public OrderUtil readFrom() throws IOException, InvalidInputException, NoSuchAlgorithmException {
+    final OrderUtil order = createOrderUtil();
+    order.readFrom(new StringReader(serializedOrder));
+    return order;
+  }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import lath.integrity.error.InvalidInputException;
+import lath.integrity.hashforest.HashForest;
+import lath.integrity.hashforest.SHA512HashValue;
+
+/**
+ * Measures writing and reading the integrity information of hash forests
+ * in both modes and all formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerializationBenchmark {
+
+  @Param({"1000", "100000"})
+  public int leafs;
+
+  @Param({"full", "roots"})
+  public String mode;
+
+  @Param({"text", "binary", "deflate"})
+  public String format;
+
+  private HashForest<SHA512HashValue> forest;
+  private byte[] serializedForest;
+
+  @Setup(Level.Trial)
+  public void createForest() throws IOException, NoSuchAlgorithmException {
+    final Random random = new Random(leafs);
+    forest = new HashForest<SHA512HashValue>(HashForest.Mode.fromString(mode));
+    for (int i = 0; i < leafs; ++i) {
+      final byte[] digest = new byte[64];
+      random.nextBytes(digest);
+      forest.update(new SHA512HashValue(digest));
+    }
+    forest.setFormat(HashForest.Format.fromString(format));
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    forest.writeTo(os);
+    serializedForest = os.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] writeTo() throws IOException {
+    final ByteArrayOutputStream os = new ByteArrayOutputStream(serializedForest.length);
+    forest.writeTo(os);
+    return os.toByteArray();
+  }
+
+  @Benchmark
+  public HashForest<SHA512HashValue> readFrom() throws IOException, InvalidInputException {
+    final HashForest<SHA512HashValue> hf = new HashForest<SHA512HashValue>();
+    hf.readFrom(new ByteArrayInputStream(serializedForest));
+    return hf;
+  }
+
+}
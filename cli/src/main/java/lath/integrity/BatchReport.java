@@ -0,0 +1,122 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Summary of a batch run with one entry per DIP. The report is written as
+ * JSON if the file name ends with .json, otherwise as CSV.
+ */
+class BatchReport {
+
+  static final Charset CHARSET = StandardCharsets.UTF_8;
+
+  private static final String[] COLUMNS = {"dip", "operation", "status", "files", "bytes", "durationMillis"};
+
+  private final List<DipJob> jobs;
+
+  BatchReport(final List<DipJob> jobs) {
+    this.jobs = jobs;
+  }
+
+  void write(final Path reportFile) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(reportFile, CHARSET)) {
+      if (reportFile.getFileName().toString().toLowerCase().endsWith(".json")) {
+        writeJson(writer);
+      } else {
+        writeCsv(writer);
+      }
+    }
+  }
+
+  private static String[] values(final DipJob job) {
+    return new String[] {
+      job.getDipDir().toString(),
+      job.getOperation().toString(),
+      job.getStatus().toString(),
+      Integer.toString(job.getFileCount()),
+      Long.toString(job.getBytes()),
+      Long.toString(job.getDurationMillis())
+    };
+  }
+
+  void writeCsv(final Writer writer) throws IOException {
+    writer.write(String.join(",", COLUMNS));
+    writer.write("\n");
+    for (final DipJob job : jobs) {
+      final String[] values = values(job);
+      for (int i = 0; i < values.length; ++i) {
+        if (i > 0) {
+          writer.write(',');
+        }
+        writer.write(csvField(values[i]));
+      }
+      writer.write("\n");
+    }
+  }
+
+  void writeJson(final Writer writer) throws IOException {
+    writer.write("[");
+    for (int j = 0; j < jobs.size(); ++j) {
+      final String[] values = values(jobs.get(j));
+      writer.write(j == 0 ? "\n  {" : ",\n  {");
+      for (int i = 0; i < values.length; ++i) {
+        writer.write(i == 0 ? "" : ", ");
+        writer.write(jsonString(COLUMNS[i]));
+        writer.write(": ");
+        // the first three columns are strings, the others numbers
+        writer.write(i < 3 ? jsonString(values[i]) : values[i]);
+      }
+      writer.write("}");
+    }
+    writer.write("\n]\n");
+  }
+
+  private static String csvField(final String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+
+  static String jsonString(final String value) {
+    final StringBuilder sb = new StringBuilder(value.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+}
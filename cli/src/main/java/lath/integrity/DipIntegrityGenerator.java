@@ -19,21 +19,23 @@
 
 package lath.integrity;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -44,13 +46,12 @@ import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import lath.integrity.error.InvalidInputException;
+import lath.integrity.hashforest.HashAlgorithm;
 import lath.integrity.hashforest.HashForest;
-import lath.integrity.hashforest.SHA512HashValue;
-import lath.integrity.util.ChecksumUtil;
-import lath.integrity.util.ErrorUtil;
+import lath.integrity.util.DigestCache;
 import lath.integrity.util.FileUtil;
-import lath.integrity.util.OrderUtil;
+import lath.integrity.util.Manifest;
+import lath.integrity.util.ParallelHashUtil;
 
 public class DipIntegrityGenerator {
 
@@ -59,310 +60,579 @@ public class DipIntegrityGenerator {
   private static final Options options = new Options();
   private static CommandLine cmd;
 
+  private static final int DEFAULT_BATCH_DIPS = 2;
+
+  // exit codes, an error wins over an invalid DIP of the same batch
+  private static final int EXIT_ERROR = 1;
+  private static final int EXIT_INVALID = 2;
+  private static final String helpFooter = "\nExit codes: 0 if all DIPs were processed successfully, "
+    + EXIT_ERROR + " if an operation couldn't be completed, "
+    + EXIT_INVALID + " if a tested DIP is damaged or modified.";
+
   private static final Option createIntegrityInformation = new Option(
     "c",
     "create",
     true,
-    "Create integrity files for selected DIP directory."
+    "Create integrity files for selected DIP directory or ZIP/TAR archive, without value in batch mode."
   );
   private static final Option testIntegrityInformation = new Option(
     "t",
     "test",
     true,
-    "Test integrity of selected DIP directory.");
+    "Test integrity of selected DIP directory or ZIP/TAR archive, without value in batch mode.");
+  private static final Option extendIntegrityInformation = new Option(
+    "e",
+    "extend",
+    true,
+    "Extend the full hash tree of selected DIP directory by the files that are not listed yet."
+  );
   private static final Option fullHashTree = new Option(
     "f",
     "full", false,
     "Write full hash tree and not only the root nodes in the integrity file."
   );
+  private static final Option hashThreads = new Option(
+    "j",
+    "threads",
+    true,
+    "Number of threads used to hash the files of the DIP (default: number of processors)."
+  );
+  private static final Option bufferSize = new Option(
+    "b",
+    "buffer-size",
+    true,
+    "Size of the read buffer per thread in KiB (default: " + FileUtil.DEFAULT_BUFFER_SIZE / 1024 + ")."
+  );
+  private static final Option memoryMapping = new Option(
+    "m",
+    "mmap",
+    true,
+    "Memory-map files while hashing: auto (files larger than "
+      + FileUtil.DEFAULT_MAPPING_THRESHOLD / (1024 * 1024) + " MiB), on or off (default: auto)."
+  );
+  private static final Option partialHashTree = new Option(
+    "p",
+    "partial",
+    true,
+    "Write the roots and all nodes down to the given depth below the roots in the integrity file."
+  );
+  private static final Option failFast = new Option(
+    "s",
+    "fail-fast",
+    false,
+    "Stop the test as soon as a hash tree doesn't match."
+  );
+  private static final Option digestCache = new Option(
+    "C",
+    "cache",
+    true,
+    "Cache file for the hash values of unchanged files, must not be located in the DIP directory."
+  );
+  private static final Option trustDigestCache = new Option(
+    "T",
+    "trust-cache",
+    false,
+    "Use the hash values of the cache file to test the integrity instead of reading all files."
+  );
+  private static final Option integrityFormat = new Option(
+    "F",
+    "format",
+    true,
+    "Format of the created integrity file: text, binary or deflate (default: text)."
+  );
+  private static final Option hashAlgorithm = new Option(
+    "a",
+    "algorithm",
+    true,
+    "Hash algorithm of the created integrity file: SHA-512, SHA-256, SHA-512/256, SHA3-256 or SHA3-512"
+      + " (default: SHA-512)."
+  );
+  private static final Option manifest = new Option(
+    "M",
+    "manifest",
+    true,
+    "Comma-separated digest algorithms, e.g. SHA-256,MD5, of BagIt manifests written while creating."
+  );
+  private static final Option manifestDir = new Option(
+    "O",
+    "manifest-dir",
+    true,
+    "Directory of the manifests (default: working directory), one subdirectory per DIP in batch mode."
+  );
+  private static final Option importManifest = new Option(
+    "I",
+    "import",
+    true,
+    "Create the integrity files from the digests of the given manifest (relative to the DIP directory)"
+      + " instead of reading the files, the digests must be of the algorithm of -a."
+  );
+  private static final Option verifySample = new Option(
+    "V",
+    "verify",
+    true,
+    "Percentage of the files read and compared with the imported manifest (default: 0)."
+  );
+  private static final Option batch = new Option(
+    "B",
+    "batch",
+    true,
+    "Create (-c) or test (-t) all DIP directories below the given directory or listed in the given file."
+  );
+  private static final Option batchDips = new Option(
+    "n",
+    "dips",
+    true,
+    "Number of DIP directories processed at the same time in batch mode (default: "
+      + DEFAULT_BATCH_DIPS + ")."
+  );
+  private static final Option batchReport = new Option(
+    "r",
+    "report",
+    true,
+    "Summary report of the batch mode, JSON if the file name ends with .json, otherwise CSV."
+  );
+  private static final Option progressInterval = new Option(
+    "P",
+    "progress",
+    true,
+    "Interval of the progress reports while hashing in seconds, 0 disables them (default: "
+      + ProgressReporter.DEFAULT_INTERVAL_MILLIS / 1000 + ")."
+  );
+  private static final Option events = new Option(
+    "E",
+    "events",
+    true,
+    "Write start, phase, progress and summary events of each DIP as NDJSON to the given file."
+  );
 
+  static {
+    createIntegrityInformation.setOptionalArg(true);
+    testIntegrityInformation.setOptionalArg(true);
+  }
 
-  private static OrderUtil fileOrder;
-  private static HashForest<SHA512HashValue> expectedHashForrest;
-  private static HashForest<SHA512HashValue> actualdHashForrest;
+  private static int hashThreadCount = ParallelHashUtil.DEFAULT_THREADS;
+  private static HashForest.Format format = null;
+  private static HashAlgorithm algorithm = HashAlgorithm.DEFAULT;
+  private static int partialDepth = 0;
+  private static int batchDipCount = DEFAULT_BATCH_DIPS;
+  private static DigestCache cache = null;
+  private static Path digestCacheFile = null;
+  private static List<String> manifestAlgorithms = null;
+  private static int verifyPercent = 0;
+  private static long progressMillis = ProgressReporter.DEFAULT_INTERVAL_MILLIS;
+  private static EventLog eventLog = null;
 
-  private static void createIntegrityInformation(final Path dipDir, final boolean fullHashTree) {
-    final Path orderFilePath = Paths.get(dipDir.toString(), OrderUtil.ORDERFILENAME);
-    final Path integrityFilePath = Paths.get(dipDir.toString(), HashForest.INTEGRITYFILENAME);
-    try {
-      Files.deleteIfExists(orderFilePath);
-      Files.deleteIfExists(integrityFilePath);
-    } catch (final IOException e) {
-      System.out.println("Es gab einen Fehler beim L\u00f6schen veralteter Integrit\u00e4tsinformationen.");
-      System.out.println(e.getMessage());
-      System.exit(1);
+  private static DipJob createJob(
+    final Path dipDir,
+    final DipJob.Operation operation,
+    final ParallelHashUtil hashUtil,
+    final PrintStream out
+  ) {
+    final DipJob job = new DipJob(dipDir, operation, hashUtil, out);
+    HashForest.Mode mode = HashForest.Mode.ROOTS;
+    if (cmd.hasOption("f")) {
+      mode = HashForest.Mode.FULL;
+    } else if (cmd.hasOption("p")) {
+      mode = HashForest.Mode.PARTIAL;
+    }
+    job.setMode(mode, partialDepth);
+    job.setFormat(format);
+    job.setAlgorithm(algorithm);
+    job.setFailFast(cmd.hasOption("s"));
+    // the progress line is only refreshed in place if nothing else is printed meanwhile
+    job.setProgress(progressMillis, System.console() != null);
+    job.setEventLog(eventLog);
+    if (cmd.hasOption("I")) {
+      // manifests of bags are located in the bag, so relative paths refer to the DIP
+      job.setImport(Paths.get(cmd.getOptionValue("I")), verifyPercent);
+    }
+    if (manifestAlgorithms != null) {
+      final Path dir = Paths.get(cmd.getOptionValue("O", ".")).toAbsolutePath().normalize();
+      // each DIP of a batch gets its own manifests
+      job.setManifest(manifestAlgorithms, cmd.hasOption("B") ? dir.resolve(dipDir.getFileName()) : dir);
     }
-    final List<Path> fileList = getFileList(dipDir);
-    generateOrderFile(orderFilePath, fileList);
-    generateIntegrityFile(dipDir, integrityFilePath, fullHashTree);
-    printIntegrityFileCreationSuccessMessage(
-      dipDir,
-      fileOrder.getIdentifiers().size(),
-      fullHashTree,
-      integrityFilePath,
-      orderFilePath
-    );
+    hashUtil.setDigestCache(cache);
+    return job;
   }
 
-  private static void generateOrderFile(final Path orderFilePath, final List<Path> fileList) {
+  private static void runJob(final Path dipDir, final DipJob.Operation operation) {
+    if (cmd.hasOption("C")) {
+      checkDigestCacheLocation(dipDir);
+      // a validation reads all files unless the cache is trusted explicitly
+      loadDigestCache(operation != DipJob.Operation.TEST || cmd.hasOption("T"));
+    }
+    final DipJob job = createJob(dipDir, operation, new ParallelHashUtil(hashThreadCount), System.out);
+    final DipJob.Status status = job.run();
+    saveDigestCache();
+    if (!closeEventLog()) {
+      System.exit(EXIT_ERROR);
+    }
+    if (status != DipJob.Status.SUCCESS) {
+      System.exit(status == DipJob.Status.ERROR ? EXIT_ERROR : EXIT_INVALID);
+    }
+  }
+
+  /*
+   * Runs the operation for all DIPs, batchDipCount at the same time. All
+   * files are hashed on one shared pool of hashThreadCount threads. The output of
+   * each DIP is collected and printed as a whole when the DIP is done.
+   */
+  private static void runBatch(final List<Path> dipDirs, final DipJob.Operation operation) {
+    if (cmd.hasOption("C")) {
+      for (final Path dipDir : dipDirs) {
+        checkDigestCacheLocation(dipDir);
+      }
+      loadDigestCache(operation != DipJob.Operation.TEST || cmd.hasOption("T"));
+    }
+    final ExecutorService hashExecutor = ParallelHashUtil.newExecutor(hashThreadCount);
+    final ExecutorService jobExecutor = Executors.newFixedThreadPool(batchDipCount);
+    final List<DipJob> jobs = new ArrayList<DipJob>();
+    final List<Future<?>> results = new ArrayList<Future<?>>();
+    for (final Path dipDir : dipDirs) {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final PrintStream out = new PrintStream(output);
+      final DipJob job = createJob(dipDir, operation, new ParallelHashUtil(hashExecutor, hashThreadCount), out);
+      job.setVerbose(false);
+      jobs.add(job);
+      results.add(jobExecutor.submit(() -> {
+        job.run();
+        out.flush();
+        synchronized (System.out) {
+          System.out.print(output.toString());
+          System.out.println("[" + job.getStatus() + "] " + job.getDipDir() + "\n");
+        }
+      }));
+    }
+    boolean success = true;
     try {
-      final ChecksumUtil checksumProvider = new ChecksumUtil(MessageDigest.getInstance("SHA-512"));
-      fileOrder = new OrderUtil(checksumProvider);
-      fileOrder.add(OrderUtil.ORDERFILENAME);
-      final Path root = Paths.get(System.getProperty("user.dir"));
-      for (final Path filePath : fileList) {
-        final Path relativePath = filePath.subpath(root.getNameCount(), filePath.getNameCount());
-        fileOrder.add(relativePath.toString());
+      for (final Future<?> result : results) {
+        result.get();
       }
-      Files.createFile(orderFilePath);
-      final File orderFile = orderFilePath.toFile();
-      final Writer fstream = new OutputStreamWriter(new FileOutputStream(orderFile, false), OrderUtil.CHARSET);
-      fileOrder.writeTo(fstream);
-      fstream.close();
-    } catch (NoSuchAlgorithmException e) {
-      // clearly a developer error, reraise instead of propagating
-      throw new RuntimeException(e);
-    } catch (IOException e) {
-      System.out.println("Beim schreiben der Ordnungsinformationen kam es zu einem Fehler.");
-      System.out.println(e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       System.exit(1);
+    } catch (ExecutionException e) {
+      // DipJob.run() handles runtime exceptions itself, anything else is clearly a developer error
+      throw new RuntimeException(e.getCause());
+    } finally {
+      jobExecutor.shutdownNow();
+      hashExecutor.shutdownNow();
+    }
+    saveDigestCache();
+    int failedCount = 0;
+    int exitCode = 0;
+    for (final DipJob job : jobs) {
+      if (job.getStatus() == DipJob.Status.ERROR) {
+        ++failedCount;
+        exitCode = EXIT_ERROR;
+      } else if (job.getStatus() != DipJob.Status.SUCCESS) {
+        ++failedCount;
+        exitCode = exitCode == 0 ? EXIT_INVALID : exitCode;
+      }
+    }
+    System.out.println((jobs.size() - failedCount) + " von " + jobs.size()
+      + " Nutzungspaketen wurden erfolgreich bearbeitet.\n");
+    if (cmd.hasOption("r")) {
+      final Path reportFile = Paths.get(cmd.getOptionValue("r"));
+      try {
+        new BatchReport(jobs).write(reportFile);
+      } catch (IOException e) {
+        System.out.println("Der Bericht \"" + reportFile + "\" kann nicht geschrieben werden.");
+        System.out.println(e.getMessage());
+        success = false;
+      }
+    }
+    success &= closeEventLog();
+    if (!success) {
+      System.exit(EXIT_ERROR);
+    }
+    if (exitCode != 0) {
+      System.exit(exitCode);
     }
   }
 
-  private static void generateIntegrityFile(
-    final Path dipDir,
-    final Path integrityFilePath,
-    final boolean fullHashTree
-  ) {
-    final List<String> fileOrderList = fileOrder.getIdentifiers();
-    final HashForest<SHA512HashValue> hf = new HashForest<SHA512HashValue>();
+  private static void openEventLog() {
+    final Path eventFile = Paths.get(cmd.getOptionValue("E"));
     try {
-      for (final String fileName : fileOrderList) {
-        final Path filePath = Paths.get(dipDir.toString(), fileName);
-        final SHA512HashValue hashValue = FileUtil.getHash(filePath.toString());
-        hf.update(hashValue);
-      }
-      hf.setOrderInformationLocation(OrderUtil.ORDERFILENAME);
-      if (!fullHashTree) hf.pruneForest();
-      Files.createFile(integrityFilePath);
-      final File integrityFile = integrityFilePath.toFile();
-      final Writer fstream = new OutputStreamWriter(new FileOutputStream(integrityFile, false), HashForest.CHARSET);
-      hf.writeTo(fstream);
-      fstream.close();
-    } catch (NoSuchAlgorithmException e) {
-      // clearly a developer error, reraise instead of propagating
-      throw new RuntimeException(e);
+      eventLog = new EventLog(eventFile);
     } catch (IOException e) {
-      System.out.println("Beim schreiben der Integrit\u00e4tsinformationen kam es zu einem Fehler.");
+      System.out.println("Das Ereignisprotokoll \"" + eventFile + "\" kann nicht geschrieben werden.");
       System.out.println(e.getMessage());
       System.exit(1);
     }
   }
 
-  private static void printIntegrityFileCreationSuccessMessage(
-    final Path dipDir,
-    final int fileNumber,
-    final boolean fullHashTree,
-    final Path integrityFilePath,
-    final Path orderFilePath
-  ) {
-    final StringBuilder statusMessage = new StringBuilder(500);
-    statusMessage.append("\nDie Integrit\u00e4tsinformationen f\u00fcr das Nutzungspaket \"");
-    statusMessage.append(dipDir);
-    statusMessage.append("\" wurden erfolgreich erstellt.\n\n");
-    statusMessage.append(fileNumber);
-    statusMessage.append(" Dateien wurden f\u00fcr die Erstellung der Integrit\u00e4tsinformationen ber\u00fccksichtigt.\n");
-    if (fullHashTree) {
-      statusMessage.append("\nIn die Integrit\u00e4tsdatei wurde der komplette Hash-Forest geschrieben.\n");
-    } else {
-      statusMessage.append("\nIn die Integrit\u00e4tsdatei wurden nur die Wurzeln der Hash-Trees geschrieben.\n");
-    }
-    statusMessage.append("\nDie Integrit\u00e4tsdatei wurde unter \"");
-    statusMessage.append(integrityFilePath);
-    statusMessage.append("\" gespeichert.\n");
-    statusMessage.append("Die Ordnungsdatei wurde unter \"");
-    statusMessage.append(orderFilePath);
-    statusMessage.append("\" gespeichert.\n");
-    System.out.println(statusMessage);
-  }
-
-  private static void testIntegrityInformation(final Path dipDir) {
-    if (readIntegrityFile(dipDir) && readFileOrder(dipDir) && readDipFiles(dipDir)) {
-      validateDip();
+  private static boolean closeEventLog() {
+    if (eventLog == null) {
+      return true;
     }
+    try {
+      eventLog.close();
+    } catch (IOException e) {
+      System.out.println("Das Ereignisprotokoll \"" + cmd.getOptionValue("E") + "\" kann nicht geschrieben werden.");
+      System.out.println(e.getMessage());
+      return false;
+    }
+    return true;
   }
 
-  private static boolean readIntegrityFile(final Path dipDir) {
-    System.out.println("\nDatei-Integrit\u00e4tsinformationen werden eingelesen.\n");
-    boolean success = true;
-    expectedHashForrest = new HashForest<SHA512HashValue>();
-    final File integrityFile = Paths.get(dipDir.toString(), HashForest.INTEGRITYFILENAME).toFile();
-    if (integrityFile.isFile() && integrityFile.canRead() && integrityFile.length() != 0) {
-      try {
-        expectedHashForrest.readFrom(new FileReader(integrityFile, HashForest.CHARSET));
-      } catch (FileNotFoundException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          HashForest.INTEGRITYFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_FOUND
-        ));
-        success = false;
-      } catch (IOException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          HashForest.INTEGRITYFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_READABLE
-        ));
-        success = false;
-      } catch (InvalidInputException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          HashForest.INTEGRITYFILENAME,
-          ErrorUtil.ErrorType.FILE_FORMAT_INVALID
-        ));
-        success = false;
+  /*
+   * Returns the DIP directories of a batch: the subdirectories and archives
+   * of the given directory or the directories listed line by line in the
+   * given file. Empty lines and lines starting with # are ignored.
+   */
+  private static List<Path> getBatchDipDirs(final String commandLineValue) {
+    final Path batchPath = Paths.get(commandLineValue.replaceFirst("^~", System.getProperty("user.home")))
+      .toAbsolutePath()
+      .normalize();
+    final List<Path> dipDirs = new ArrayList<Path>();
+    try {
+      if (Files.isDirectory(batchPath)) {
+        try (Stream<Path> entries = Files.list(batchPath)) {
+          dipDirs.addAll(entries
+            .filter(entry -> Files.isDirectory(entry) || isArchive(entry))
+            .sorted()
+            .collect(Collectors.toList()));
+        }
+      } else {
+        for (final String line : Files.readAllLines(batchPath)) {
+          final String value = line.trim();
+          if (!value.isEmpty() && !value.startsWith("#")) {
+            dipDirs.add(getDipDir(value));
+          }
+        }
       }
-    } else {
-      success = false;
-      System.out.println(ErrorUtil.getFileErrorMessage(
-        HashForest.INTEGRITYFILENAME,
-        ErrorUtil.ErrorType.FILE_NOT_READABLE
-      ));
+    } catch (IOException e) {
+      System.out.println("Die Nutzungspakete unter \"" + batchPath + "\" k\u00f6nnen nicht ausgelesen werden.");
+      System.out.println(e.getMessage());
+      System.exit(1);
     }
-    return success;
+    return dipDirs;
   }
 
-  private static boolean readFileOrder(final Path dipDir) {
-    System.out.println("Datei-Ordnungsinformationen werden eingelesen.\n");
-    boolean success = true;
-    final File orderingFile = Paths.get(dipDir.toString(), OrderUtil.ORDERFILENAME).toFile();
-    if (orderingFile.isFile() && orderingFile.canRead() && orderingFile.length() != 0) {
-      try {
-        final ChecksumUtil checksumProvider = new ChecksumUtil(MessageDigest.getInstance("SHA-512"));
-        fileOrder = new OrderUtil(checksumProvider);
-        fileOrder.readFrom(new FileReader(orderingFile, OrderUtil.CHARSET));
-      } catch (NoSuchAlgorithmException e) {
-        // clearly a developer error, reraise instead of propagating to ui
-        throw new RuntimeException(e);
-      } catch (FileNotFoundException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          OrderUtil.ORDERFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_FOUND
-        ));
-        success = false;
-      } catch (IOException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          OrderUtil.ORDERFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_READABLE
-        ));
-        success = false;
-      } catch (InvalidInputException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          OrderUtil.ORDERFILENAME,
-          ErrorUtil.ErrorType.FILE_FORMAT_INVALID
-        ));
-        success = false;
-      }
-    } else {
-      success = false;
-      System.out.println(ErrorUtil.getFileErrorMessage(
-        OrderUtil.ORDERFILENAME,
-        ErrorUtil.ErrorType.FILE_NOT_READABLE
-      ));
+  private static void checkDigestCacheLocation(final Path dipDir) {
+    digestCacheFile = Paths.get(cmd.getOptionValue("C")).toAbsolutePath().normalize();
+    if (digestCacheFile.startsWith(dipDir)) {
+      System.out.println("Der Zwischenspeicher \"" + digestCacheFile + "\" darf nicht im Nutzungspaket liegen.");
+      System.exit(1);
     }
-    return success;
   }
 
-  private static boolean readDipFiles(final Path dipDir) {
-    final int fileNumber = fileOrder.getIdentifiers().size();
-    int currentFile = 1;
-    actualdHashForrest = new HashForest<SHA512HashValue>();
-    boolean success = true;
-    for (String fileName : fileOrder.getIdentifiers()) {
-      try {
-        System.out.println("Lese Date " + currentFile + " von " + fileNumber + " ein.");
-        final Path filePath = Paths.get(dipDir.toString(), fileName);
-        final SHA512HashValue fileHash = FileUtil.getHash(filePath.toString());
-        actualdHashForrest.update(fileHash);
-        ++currentFile;
-      } catch (NoSuchAlgorithmException e) {
-        // clearly a developer error, reraise instead of propagating to ui
-        throw new RuntimeException(e);
-      } catch (FileNotFoundException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          fileName,
-          ErrorUtil.ErrorType.FILE_NOT_FOUND
-        ));
-        success = false;
-        break;
-      } catch (IOException e) {
-        System.out.println(ErrorUtil.getFileErrorMessage(
-          fileName,
-          ErrorUtil.ErrorType.FILE_NOT_READABLE
-        ));
-        success = false;
-        break;
-      }
+  private static void loadDigestCache(final boolean trusted) {
+    digestCacheFile = Paths.get(cmd.getOptionValue("C")).toAbsolutePath().normalize();
+    // a cache only holds hash values of one algorithm, it's not used for other algorithms
+    cache = new DigestCache(algorithm);
+    cache.setTrusted(trusted);
+    try {
+      cache.load(digestCacheFile);
+    } catch (IOException e) {
+      System.out.println("Der Zwischenspeicher \"" + digestCacheFile + "\" kann nicht gelesen werden.");
+      System.out.println(e.getMessage());
+      System.exit(1);
     }
-    return success;
   }
 
-  private static void validateDip() {
-    System.out.println("\nIntegrit\u00e4t des Nutzungspakets wird \u00fcberpr\u00fcft.");
-    if (expectedHashForrest.validate(actualdHashForrest)) {
-      System.out.println("\nDie Pr\u00fcfung wurde erfolgreich beendet. Ihr Nutzungspaket ist unver\u00e4ndert.\n");
-    } else {
-      System.out.println("\nDie Pr\u00fcfung ist fehlgeschlagen. Ihr Nutzungspaket ist besch\u00e4digt oder ver\u00e4ndert.\n");
+  private static void saveDigestCache() {
+    if (cache == null) {
+      return;
+    }
+    if (cache.isTrusted()) {
+      System.out.println(cache.getHits() + " von " + (cache.getHits() + cache.getMisses())
+        + " Hash-Werten wurden aus dem Zwischenspeicher \u00fcbernommen.\n");
+    }
+    try {
+      cache.save(digestCacheFile);
+    } catch (IOException e) {
+      System.out.println("Der Zwischenspeicher \"" + digestCacheFile + "\" kann nicht geschrieben werden.");
+      System.out.println(e.getMessage());
     }
   }
 
   private static Path getDipDir(final String commandLineValue) {
     String pathValue = commandLineValue.replaceFirst("^~", System.getProperty("user.home"));
     final Path dipDir = Paths.get(pathValue).toAbsolutePath();
-    if (!Files.isDirectory(dipDir)) {
-      System.out.println("Der Pfad f\u00fcr das Nutzungspaket \"" + dipDir + "\" ist kein Ordner.");
+    if (!Files.isDirectory(dipDir) && !isArchive(dipDir)) {
+      System.out.println("Der Pfad f\u00fcr das Nutzungspaket \"" + dipDir
+        + "\" ist weder ein Ordner noch ein ZIP- oder TAR-Archiv.");
       System.exit(1);
     }
     return dipDir.normalize();
   }
 
-  private static List<Path> getFileList(final Path dipDir) {
-    List<Path> dipFileList = new ArrayList<Path>();
+  private static boolean isArchive(final Path path) {
+    final String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+    return Files.isRegularFile(path) && (name.endsWith(".zip") || name.endsWith(".tar"));
+  }
+
+  private static int parsePositiveInt(final String option, final String message) {
     try {
-      dipFileList = Files.walk(dipDir)
-        .filter(Files::isRegularFile)
-        .collect(Collectors.toList());
-    } catch (IOException e) {
-      System.out.println("Die Dateien in ihrem Nutzungspaket k\u00f6nnen nicht ausgelesen werden.");
-      System.out.println(e.getMessage());
+      final int value = Integer.parseInt(cmd.getOptionValue(option));
+      if (value < 1) {
+        throw new IllegalArgumentException();
+      }
+      return value;
+    } catch (final IllegalArgumentException e) {
+      System.out.println(message);
       System.exit(1);
+      return 0;
     }
-    return dipFileList;
   }
 
   private static void parseCommandLineArguments(final String[] args) {
     final OptionGroup optionGroup = new OptionGroup();
     optionGroup.addOption(createIntegrityInformation);
     optionGroup.addOption(testIntegrityInformation);
+    optionGroup.addOption(extendIntegrityInformation);
     options.addOptionGroup(optionGroup);
     options.addOption(fullHashTree);
+    options.addOption(partialHashTree);
+    options.addOption(failFast);
+    options.addOption(digestCache);
+    options.addOption(trustDigestCache);
+    options.addOption(hashThreads);
+    options.addOption(bufferSize);
+    options.addOption(memoryMapping);
+    options.addOption(integrityFormat);
+    options.addOption(hashAlgorithm);
+    options.addOption(manifest);
+    options.addOption(manifestDir);
+    options.addOption(importManifest);
+    options.addOption(verifySample);
+    options.addOption(batch);
+    options.addOption(batchDips);
+    options.addOption(batchReport);
+    options.addOption(progressInterval);
+    options.addOption(events);
     final CommandLineParser parser = new DefaultParser();
     try {
       cmd = parser.parse(options, args);
     } catch (final ParseException e) {
       System.out.println(e.getMessage());
-      formatter.printHelp(invokeCommand, options);
+      formatter.printHelp(invokeCommand, "", options, helpFooter);
       System.exit(1);
     }
+    if (cmd.hasOption("j")) {
+      hashThreadCount = parsePositiveInt(
+        "j",
+        "Die Anzahl der Threads \"" + cmd.getOptionValue("j") + "\" ist ung\u00fcltig."
+      );
+    }
+    if (cmd.hasOption("n")) {
+      batchDipCount = parsePositiveInt(
+        "n",
+        "Die Anzahl der Nutzungspakete \"" + cmd.getOptionValue("n") + "\" ist ung\u00fcltig."
+      );
+    }
+    if (cmd.hasOption("b")) {
+      try {
+        FileUtil.setBufferSize(Math.multiplyExact(Integer.parseInt(cmd.getOptionValue("b")), 1024));
+      } catch (final IllegalArgumentException | ArithmeticException e) {
+        System.out.println("Die Puffergr\u00f6\u00dfe \"" + cmd.getOptionValue("b") + "\" ist ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
+    if (cmd.hasOption("m")) {
+      try {
+        FileUtil.setMappingMode(FileUtil.MappingMode.fromString(cmd.getOptionValue("m")));
+      } catch (final IllegalArgumentException e) {
+        System.out.println("Der Wert \"" + cmd.getOptionValue("m") + "\" f\u00fcr die Option mmap ist ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
+    if (cmd.hasOption("p")) {
+      try {
+        partialDepth = Integer.parseInt(cmd.getOptionValue("p"));
+        if (partialDepth < 0) {
+          throw new IllegalArgumentException();
+        }
+      } catch (final IllegalArgumentException e) {
+        System.out.println("Die Tiefe \"" + cmd.getOptionValue("p") + "\" ist ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
+    if (cmd.hasOption("F")) {
+      try {
+        format = HashForest.Format.fromString(cmd.getOptionValue("F"));
+      } catch (final IllegalArgumentException e) {
+        System.out.println("Das Format \"" + cmd.getOptionValue("F") + "\" ist ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
+    if (cmd.hasOption("a")) {
+      try {
+        algorithm = HashAlgorithm.fromString(cmd.getOptionValue("a"));
+      } catch (final IllegalArgumentException e) {
+        System.out.println("Der Hash-Algorithmus \"" + cmd.getOptionValue("a") + "\" ist ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
+    if (cmd.hasOption("M")) {
+      manifestAlgorithms = new ArrayList<String>();
+      final Set<String> standardNames = new HashSet<String>();
+      try {
+        for (final String value : cmd.getOptionValue("M").split(",")) {
+          // an algorithm listed twice, also under an alias like sha256, gets one manifest
+          if (!value.trim().isEmpty() && standardNames.add(Manifest.getStandardName(value.trim()))) {
+            manifestAlgorithms.add(value.trim());
+          }
+        }
+        new Manifest(manifestAlgorithms);
+      } catch (final IllegalArgumentException e) {
+        System.out.println("Die Algorithmen \"" + cmd.getOptionValue("M") + "\" f\u00fcr die Manifeste sind ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
+    if (cmd.hasOption("I") && cmd.hasOption("M")) {
+      System.out.println("Beim Import eines Manifests k\u00f6nnen keine Manifeste geschrieben werden.");
+      System.exit(1);
+    }
+    if (cmd.hasOption("V")) {
+      try {
+        verifyPercent = Integer.parseInt(cmd.getOptionValue("V"));
+        if (verifyPercent < 0 || verifyPercent > 100) {
+          throw new IllegalArgumentException();
+        }
+      } catch (final IllegalArgumentException e) {
+        System.out.println("Der Prozentsatz \"" + cmd.getOptionValue("V") + "\" ist ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
+    if (cmd.hasOption("P")) {
+      try {
+        progressMillis = Math.multiplyExact(Long.parseLong(cmd.getOptionValue("P")), 1000);
+        if (progressMillis < 0) {
+          throw new IllegalArgumentException();
+        }
+      } catch (final IllegalArgumentException | ArithmeticException e) {
+        System.out.println("Das Intervall \"" + cmd.getOptionValue("P") + "\" ist ung\u00fcltig.");
+        System.exit(1);
+      }
+    }
   }
 
   public static void main(final String[] args) {
     parseCommandLineArguments(args);
+    DipJob.Operation operation = null;
+    String dipValue = null;
     if (cmd.hasOption("c")) {
-      final Path dipDir = getDipDir(cmd.getOptionValue("c"));
-      createIntegrityInformation(dipDir, cmd.hasOption("f"));
+      operation = DipJob.Operation.CREATE;
+      dipValue = cmd.getOptionValue("c");
+    } else if (cmd.hasOption("e")) {
+      operation = DipJob.Operation.EXTEND;
+      dipValue = cmd.getOptionValue("e");
     } else if (cmd.hasOption("t")) {
-      final Path dipDir = getDipDir(cmd.getOptionValue("t"));
-      testIntegrityInformation(dipDir);
+      operation = DipJob.Operation.TEST;
+      dipValue = cmd.getOptionValue("t");
+    }
+    if (cmd.hasOption("E") && operation != null) {
+      openEventLog();
+    }
+    if (cmd.hasOption("B") && dipValue == null && operation != DipJob.Operation.EXTEND && operation != null) {
+      runBatch(getBatchDipDirs(cmd.getOptionValue("B")), operation);
+    } else if (!cmd.hasOption("B") && dipValue != null) {
+      runJob(getDipDir(dipValue), operation);
     } else {
-      formatter.printHelp(invokeCommand, options);
+      formatter.printHelp(invokeCommand, "", options, helpFooter);
     }
   }
 
@@ -0,0 +1,1169 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lath.integrity.error.FileHashException;
+import lath.integrity.error.InvalidInputException;
+import lath.integrity.hashforest.DigestHashValue;
+import lath.integrity.hashforest.HashAlgorithm;
+import lath.integrity.hashforest.HashForest;
+import lath.integrity.hashforest.StreamingValidator;
+import lath.integrity.util.ChecksumUtil;
+import lath.integrity.util.ErrorUtil;
+import lath.integrity.util.FileUtil;
+import lath.integrity.util.Manifest;
+import lath.integrity.util.OrderUtil;
+import lath.integrity.util.ParallelHashUtil;
+import lath.integrity.util.TarArchive;
+
+/**
+ * Creates, extends or tests the integrity information of one DIP. All state
+ * of the operation is held by the job, so several jobs can run at the same
+ * time, each with its own output stream and hash helper.
+ *
+ * The DIP is either a directory or a ZIP or TAR archive that contains the
+ * DIP at its root or in its only top-level directory. ZIP archives are
+ * accessed through a ZIP file system, TAR archives are read sequentially
+ * without extracting them.
+ */
+class DipJob {
+
+  enum Operation {
+    CREATE("create"),
+    EXTEND("extend"),
+    TEST("test");
+
+    private final String name;
+
+    Operation(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  enum Status {
+    // integrity information created or extended, DIP unchanged
+    SUCCESS("ok"),
+    // DIP is damaged or modified
+    INVALID("invalid"),
+    // operation couldn't be completed
+    ERROR("error");
+
+    private final String name;
+
+    Status(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  // suffix of the integrity files while they are written
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // directory or archive as given by the user
+  private final Path dipDir;
+  // directory of the DIP, also inside a ZIP archive, null for TAR archives
+  private Path root;
+  private FileSystem zipFileSystem = null;
+  private TarArchive tarArchive = null;
+  private String tarPrefix = "";
+  // file entries of the DIP by identifier, in the order of the archive
+  private final Map<String, TarArchive.Entry> tarEntries = new LinkedHashMap<String, TarArchive.Entry>();
+  // file entries of the whole archive by name, the targets of hard links
+  private final Map<String, TarArchive.Entry> tarFiles = new HashMap<String, TarArchive.Entry>();
+  // polled by the progress reporter while the entries are hashed
+  private final AtomicLong tarBytes = new AtomicLong();
+  private final Operation operation;
+  private final ParallelHashUtil hashUtil;
+  private final PrintStream out;
+
+  private HashForest.Mode mode = HashForest.Mode.ROOTS;
+  private int partialDepth = 0;
+  private HashAlgorithm algorithm = HashAlgorithm.DEFAULT;
+  // null keeps the format of extended integrity information
+  private HashForest.Format format = null;
+  private boolean isFailFast = false;
+  private boolean isVerbose = true;
+  private List<String> manifestAlgorithms = null;
+  private Path manifestDir = null;
+  private Path importFile = null;
+  private int verifyPercent = 0;
+  private EventLog eventLog = null;
+  // 0 disables the progress reports
+  private long progressIntervalMillis = ProgressReporter.DEFAULT_INTERVAL_MILLIS;
+  private boolean isProgressInPlace = false;
+
+  // durations of the phases in milliseconds, in the order they started
+  private final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+  private String phase = null;
+  private long phaseStartNanos = 0;
+
+  private OrderUtil fileOrder;
+  private HashForest<DigestHashValue> expectedHashForest;
+  private HashForest<DigestHashValue> actualHashForest;
+  private StreamingValidator<DigestHashValue> validator;
+
+  private Status status = null;
+  private int fileCount = 0;
+  private long durationMillis = 0;
+
+  DipJob(final Path dipDir, final Operation operation, final ParallelHashUtil hashUtil, final PrintStream out) {
+    this.dipDir = dipDir;
+    this.operation = operation;
+    this.hashUtil = hashUtil;
+    this.out = out;
+  }
+
+  void setMode(final HashForest.Mode mode, final int partialDepth) {
+    this.mode = mode;
+    this.partialDepth = partialDepth;
+  }
+
+  /**
+   * Sets the algorithm of created integrity information, tests and
+   * extensions use the algorithm of the existing integrity information.
+   */
+  void setAlgorithm(final HashAlgorithm algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  void setFormat(final HashForest.Format format) {
+    this.format = format;
+  }
+
+  void setFailFast(final boolean isFailFast) {
+    this.isFailFast = isFailFast;
+  }
+
+  /**
+   * Prints the progress while the files are hashed, enabled by default.
+   */
+  void setVerbose(final boolean isVerbose) {
+    this.isVerbose = isVerbose;
+  }
+
+  /**
+   * Writes BagIt manifests of the given algorithms to the given directory
+   * when integrity information is created, the files are read only once.
+   */
+  void setManifest(final List<String> manifestAlgorithms, final Path manifestDir) {
+    this.manifestAlgorithms = manifestAlgorithms;
+    this.manifestDir = manifestDir;
+  }
+
+  /**
+   * Creates the integrity information from the digests of the given
+   * manifest instead of reading the files. The given percentage of the files
+   * is read nevertheless and compared with the manifest. A relative path
+   * refers to the directory of the DIP.
+   */
+  void setImport(final Path importFile, final int verifyPercent) {
+    this.importFile = importFile;
+    this.verifyPercent = verifyPercent;
+  }
+
+  /**
+   * Writes the events of the job to the given log, which may be shared by
+   * several jobs.
+   */
+  void setEventLog(final EventLog eventLog) {
+    this.eventLog = eventLog;
+  }
+
+  /**
+   * Sets the interval of the progress reports while the files are hashed, 0
+   * disables them. On a console the progress line can be refreshed in place.
+   */
+  void setProgress(final long intervalMillis, final boolean isInPlace) {
+    this.progressIntervalMillis = intervalMillis;
+    this.isProgressInPlace = isInPlace;
+  }
+
+  Path getDipDir() {
+    return dipDir;
+  }
+
+  Operation getOperation() {
+    return operation;
+  }
+
+  Status getStatus() {
+    return status;
+  }
+
+  int getFileCount() {
+    return fileCount;
+  }
+
+  long getBytes() {
+    return hashUtil.getBytes() + tarBytes.get();
+  }
+
+  long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /**
+   * Runs the operation, messages are printed to the output stream of the job.
+   * @return status of the operation
+   */
+  Status run() {
+    final long start = System.nanoTime();
+    if (eventLog != null) {
+      eventLog.write(newEvent("start"));
+    }
+    try {
+      startPhase("open_archive");
+      if (!openArchive()) {
+        status = Status.ERROR;
+        return status;
+      }
+      switch (operation) {
+        case CREATE:
+          status = createIntegrityInformation() ? Status.SUCCESS : Status.ERROR;
+          break;
+        case EXTEND:
+          status = extendIntegrityInformation() ? Status.SUCCESS : Status.ERROR;
+          break;
+        default:
+          status = testIntegrityInformation();
+          break;
+      }
+    } catch (RuntimeException e) {
+      // e.g. an unreadable directory while listing the files, don't let it end other jobs of a batch
+      out.println("Bei der Bearbeitung des Nutzungspakets kam es zu einem unerwarteten Fehler.");
+      out.println(e);
+      status = Status.ERROR;
+    } finally {
+      if (zipFileSystem != null || tarArchive != null) {
+        startPhase("close_archive");
+      }
+      if (!closeArchive()) {
+        status = Status.ERROR;
+      }
+      endPhase();
+      durationMillis = (System.nanoTime() - start) / 1000000;
+    }
+    if (eventLog != null) {
+      eventLog.write(newEvent("summary")
+        .add("status", status.toString())
+        .add("files", fileCount)
+        .add("bytes", getBytes())
+        .add("durationMillis", durationMillis)
+        .add("phases", phaseMillis));
+    }
+    return status;
+  }
+
+  private EventLog.Event newEvent(final String type) {
+    return new EventLog.Event(type, dipDir).add("operation", operation.toString());
+  }
+
+  /*
+   * Ends the current phase and starts the next one, the durations of phases
+   * entered more than once are summed up.
+   */
+  private void startPhase(final String name) {
+    endPhase();
+    phase = name;
+    phaseStartNanos = System.nanoTime();
+  }
+
+  private void endPhase() {
+    if (phase == null) {
+      return;
+    }
+    final long millis = (System.nanoTime() - phaseStartNanos) / 1000000;
+    phaseMillis.merge(phase, millis, Long::sum);
+    if (eventLog != null) {
+      eventLog.write(newEvent("phase").add("phase", phase).add("durationMillis", millis));
+    }
+    phase = null;
+  }
+
+  /*
+   * Hashes the files of the DIP, from the TAR archive in the order of the
+   * archive, and reports the progress at the configured interval.
+   */
+  private void hashFiles(
+    final List<String> identifiers,
+    final HashAlgorithm algorithm,
+    final ParallelHashUtil.Listener listener
+  ) throws FileHashException {
+    final ProgressReporter progress = progressIntervalMillis == 0 || !isVerbose && eventLog == null
+      ? null
+      : new ProgressReporter(isVerbose ? out : null, isProgressInPlace, eventLog, this,
+          identifiers.size(), getTotalBytes(identifiers),
+          () -> hashUtil.getHashedBytes() + tarBytes.get(), progressIntervalMillis);
+    final ParallelHashUtil.Listener reportingListener = progress == null
+      ? listener
+      : (index, identifier, hashValue) -> {
+        listener.hashed(index, identifier, hashValue);
+        progress.update(index + 1);
+      };
+    hashUtil.setAlgorithm(algorithm);
+    try {
+      if (tarArchive != null) {
+        hashTarEntries(identifiers, algorithm, reportingListener);
+      } else {
+        hashUtil.hash(root, identifiers, reportingListener);
+      }
+    } finally {
+      if (progress != null) {
+        progress.finish();
+      }
+    }
+  }
+
+  /*
+   * Returns the number of bytes to hash for the given files, every
+   * occurrence of a file counts like in the hashed bytes. Files that can't
+   * be read count as empty, they end the hashing anyway.
+   */
+  private long getTotalBytes(final List<String> identifiers) {
+    long totalBytes = 0;
+    for (final String identifier : identifiers) {
+      if (tarArchive != null) {
+        final TarArchive.Entry entry = tarEntries.get(identifier);
+        final TarArchive.Entry dataEntry =
+          entry != null && entry.isHardLink() ? tarFiles.get(entry.getLinkName()) : entry;
+        totalBytes += dataEntry != null ? dataEntry.getSize() : 0;
+      } else {
+        try {
+          totalBytes += Files.size(root.resolve(identifier));
+        } catch (IOException e) {
+          // reported when the file is hashed
+        }
+      }
+    }
+    return totalBytes;
+  }
+
+  /*
+   * Opens the archive if the DIP isn't a directory and determines the
+   * directory of the DIP in the archive.
+   */
+  private boolean openArchive() {
+    if (Files.isDirectory(dipDir)) {
+      root = dipDir;
+      return true;
+    }
+    final String name = dipDir.getFileName().toString().toLowerCase(Locale.ROOT);
+    try {
+      if (name.endsWith(".zip")) {
+        zipFileSystem = FileSystems.newFileSystem(dipDir, (ClassLoader) null);
+        root = findZipRoot(zipFileSystem.getPath("/"));
+        // the cache identifies files by their path, which isn't unique across archives
+        hashUtil.setDigestCache(null);
+        return true;
+      } else if (name.endsWith(".tar")) {
+        // entries are appended to a copy, see createIntegrityInformationInTar
+        tarArchive = TarArchive.open(dipDir, false);
+        findTarRoot();
+        return true;
+      }
+    } catch (IOException | InvalidInputException e) {
+      out.println("Das Archiv \"" + dipDir + "\" kann nicht gelesen werden.");
+      out.println(e.getMessage());
+      return false;
+    }
+    out.println("Der Pfad f\u00fcr das Nutzungspaket \"" + dipDir + "\" ist weder ein Ordner noch ein ZIP- oder TAR-Archiv.");
+    return false;
+  }
+
+  private static Path findZipRoot(final Path top) throws IOException {
+    if (Files.exists(top.resolve(HashForest.INTEGRITYFILENAME))) {
+      return top;
+    }
+    try (Stream<Path> entries = Files.list(top)) {
+      final List<Path> topEntries = entries.collect(Collectors.toList());
+      return topEntries.size() == 1 && Files.isDirectory(topEntries.get(0)) ? topEntries.get(0) : top;
+    }
+  }
+
+  private void findTarRoot() {
+    String integrityFileName = null;
+    String topDirectory = null;
+    boolean hasSingleTopDirectory = true;
+    for (final TarArchive.Entry entry : tarArchive.getEntries()) {
+      final String name = entry.getName();
+      if ((name.equals(HashForest.INTEGRITYFILENAME) || name.endsWith("/" + HashForest.INTEGRITYFILENAME))
+          && (integrityFileName == null || name.length() < integrityFileName.length())) {
+        integrityFileName = name;
+      }
+      final int slash = name.indexOf('/');
+      final String top = slash < 0 ? (entry.isDirectory() ? name : null) : name.substring(0, slash);
+      if (top == null || topDirectory != null && !topDirectory.equals(top)) {
+        hasSingleTopDirectory = false;
+      }
+      topDirectory = top;
+    }
+    if (integrityFileName != null) {
+      tarPrefix = integrityFileName.substring(0, integrityFileName.length() - HashForest.INTEGRITYFILENAME.length());
+    } else if (hasSingleTopDirectory && topDirectory != null) {
+      tarPrefix = topDirectory + "/";
+    }
+    for (final TarArchive.Entry entry : tarArchive.getEntries()) {
+      if (entry.isFile()) {
+        tarFiles.put(entry.getName(), entry);
+      }
+      if ((entry.isFile() || entry.isHardLink()) && entry.getName().startsWith(tarPrefix)) {
+        tarEntries.put(entry.getName().substring(tarPrefix.length()).replace('/', File.separatorChar), entry);
+      }
+    }
+  }
+
+  /*
+   * Closes the archive, changes of a ZIP archive are written now. The ZIP
+   * file system writes them to a temporary file next to the archive and
+   * moves it into place, so an interrupted write leaves the archive intact.
+   */
+  private boolean closeArchive() {
+    try {
+      if (zipFileSystem != null) {
+        zipFileSystem.close();
+      }
+      if (tarArchive != null) {
+        tarArchive.close();
+      }
+    } catch (IOException e) {
+      out.println("Das Archiv \"" + dipDir + "\" kann nicht geschrieben werden.");
+      out.println(e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  private void printFileHashError(final FileHashException e) {
+    out.println(ErrorUtil.getFileErrorMessage(
+      e.getFileName(),
+      e.isFileNotFound() ? ErrorUtil.ErrorType.FILE_NOT_FOUND : ErrorUtil.ErrorType.FILE_NOT_READABLE
+    ));
+  }
+
+  private boolean createIntegrityInformation() {
+    if (tarArchive != null) {
+      return createIntegrityInformationInTar();
+    }
+    final Path orderFilePath = root.resolve(OrderUtil.ORDERFILENAME);
+    final Path integrityFilePath = root.resolve(HashForest.INTEGRITYFILENAME);
+    try {
+      Files.deleteIfExists(orderFilePath);
+      Files.deleteIfExists(integrityFilePath);
+    } catch (final IOException e) {
+      out.println("Es gab einen Fehler beim L\u00f6schen veralteter Integrit\u00e4tsinformationen.");
+      out.println(e.getMessage());
+      return false;
+    }
+    if (importFile != null) {
+      if (!importIntegrityInformation(orderFilePath, integrityFilePath)) {
+        return false;
+      }
+    } else {
+      final List<Path> fileList = getFileList();
+      if (fileList == null || !generateOrderFile(orderFilePath, fileList)
+          || !generateIntegrityFile(integrityFilePath)) {
+        return false;
+      }
+    }
+    printIntegrityFileCreationSuccessMessage(integrityFilePath, orderFilePath);
+    return true;
+  }
+
+  private void createFileOrder(final List<String> identifiers) {
+    try {
+      final ChecksumUtil checksumProvider = new ChecksumUtil(MessageDigest.getInstance("SHA-512"));
+      fileOrder = new OrderUtil(checksumProvider);
+    } catch (NoSuchAlgorithmException e) {
+      // clearly a developer error, reraise instead of propagating
+      throw new RuntimeException(e);
+    }
+    fileOrder.add(OrderUtil.ORDERFILENAME);
+    for (final String identifier : identifiers) {
+      fileOrder.add(identifier);
+    }
+    fileCount = fileOrder.getIdentifiers().size();
+  }
+
+  private boolean generateOrderFile(final Path orderFilePath, final List<Path> fileList) {
+    final List<String> identifiers = new ArrayList<String>();
+    for (final Path filePath : fileList) {
+      identifiers.add(getIdentifier(filePath));
+    }
+    createFileOrder(identifiers);
+    startPhase("write_order_file");
+    try {
+      Files.createFile(orderFilePath);
+      writeOrderFile(orderFilePath);
+    } catch (IOException e) {
+      out.println("Beim schreiben der Ordnungsinformationen kam es zu einem Fehler.");
+      out.println(e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /*
+   * Creates the integrity information of a DIP in a TAR archive. The files
+   * are hashed in the order of the archive and the order and integrity files
+   * are appended to a copy of the archive, which then replaces it. An
+   * interrupted append thus never leaves a truncated archive behind.
+   */
+  private boolean createIntegrityInformationInTar() {
+    if (tarEntries.containsKey(OrderUtil.ORDERFILENAME) || tarEntries.containsKey(HashForest.INTEGRITYFILENAME)) {
+      out.println("Das Archiv \"" + dipDir + "\" enth\u00e4lt bereits Integrit\u00e4tsinformationen,"
+        + " die in einem TAR-Archiv nicht ersetzt werden k\u00f6nnen.");
+      return false;
+    }
+    if (importFile != null) {
+      out.println("Ein Manifest kann nicht f\u00fcr ein TAR-Archiv \u00fcbernommen werden.");
+      return false;
+    }
+    final Path tempPath = dipDir.resolveSibling(dipDir.getFileName() + TEMP_SUFFIX);
+    // left over by an interrupted creation
+    if (!deleteTempFiles(tempPath)) {
+      return false;
+    }
+    final List<String> identifiers = new ArrayList<String>(tarEntries.keySet());
+    createFileOrder(identifiers);
+    final HashForest<DigestHashValue> hf = new HashForest<DigestHashValue>(mode, partialDepth, algorithm);
+    try {
+      final ByteArrayOutputStream orderData = new ByteArrayOutputStream();
+      try (Writer w = new OutputStreamWriter(orderData, OrderUtil.CHARSET)) {
+        fileOrder.writeTo(w);
+      }
+      hf.update(algorithm.createHashValue(algorithm.getDigest().digest(orderData.toByteArray())));
+      startPhase("hash_files");
+      hashFiles(identifiers, algorithm, (index, identifier, hashValue) -> hf.update(hashValue));
+      startPhase("write_integrity_file");
+      hf.setOrderInformationLocation(OrderUtil.ORDERFILENAME);
+      hf.setFormat(format != null ? format : HashForest.Format.TEXT);
+      final ByteArrayOutputStream integrityData = new ByteArrayOutputStream();
+      hf.writeTo(integrityData);
+      Files.copy(dipDir, tempPath, StandardCopyOption.REPLACE_EXISTING);
+      try (TarArchive tempArchive = TarArchive.open(tempPath, true)) {
+        tempArchive.append(tarPrefix + OrderUtil.ORDERFILENAME, orderData.toByteArray());
+        tempArchive.append(tarPrefix + HashForest.INTEGRITYFILENAME, integrityData.toByteArray());
+      }
+      // an open archive can't be replaced on Windows
+      tarArchive.close();
+      tarArchive = null;
+      replaceFile(tempPath, dipDir);
+    } catch (FileHashException e) {
+      printFileHashError(e);
+      return false;
+    } catch (IOException | InvalidInputException e) {
+      out.println("Beim schreiben der Integrit\u00e4tsinformationen kam es zu einem Fehler.");
+      out.println(e.getMessage());
+      deleteTempFiles(tempPath);
+      return false;
+    }
+    printIntegrityFileCreationSuccessMessage(
+      dipDir.resolve(tarPrefix + HashForest.INTEGRITYFILENAME),
+      dipDir.resolve(tarPrefix + OrderUtil.ORDERFILENAME)
+    );
+    return true;
+  }
+
+  /*
+   * Hashes the entries of the TAR archive in the order they are stored, so
+   * the archive is read sequentially, and passes the hash values to the
+   * listener in the order of the identifiers. Only the hash values of
+   * entries stored ahead of their turn are buffered, never their data.
+   */
+  private void hashTarEntries(
+    final List<String> identifiers,
+    final HashAlgorithm algorithm,
+    final ParallelHashUtil.Listener listener
+  ) throws FileHashException {
+    final Map<String, Integer> indices = new HashMap<String, Integer>();
+    for (int i = 0; i < identifiers.size(); ++i) {
+      indices.put(identifiers.get(i), i);
+    }
+    final DigestHashValue[] hashValues = new DigestHashValue[identifiers.size()];
+    // hard links refer to the name of an earlier entry
+    final Map<String, DigestHashValue> hashedEntries = new HashMap<String, DigestHashValue>();
+    int next = 0;
+    for (final Map.Entry<String, TarArchive.Entry> entry : tarEntries.entrySet()) {
+      final Integer index = indices.get(entry.getKey());
+      if (index == null) {
+        continue;
+      }
+      hashValues[index] = hashTarEntry(entry.getKey(), entry.getValue(), algorithm, hashedEntries);
+      while (next < hashValues.length && hashValues[next] != null) {
+        listener.hashed(next, identifiers.get(next), hashValues[next]);
+        hashValues[next] = null;
+        ++next;
+      }
+      if (hashUtil.isCancelled()) {
+        return;
+      }
+    }
+    if (next < identifiers.size()) {
+      throw new FileHashException(identifiers.get(next), new FileNotFoundException(identifiers.get(next)));
+    }
+  }
+
+  private DigestHashValue hashTarEntry(
+    final String identifier,
+    final TarArchive.Entry entry,
+    final HashAlgorithm algorithm,
+    final Map<String, DigestHashValue> hashedEntries
+  ) throws FileHashException {
+    TarArchive.Entry dataEntry = entry;
+    if (entry.isHardLink()) {
+      dataEntry = tarFiles.get(entry.getLinkName());
+      if (dataEntry == null) {
+        throw new FileHashException(identifier, new FileNotFoundException(entry.getLinkName()));
+      }
+    }
+    DigestHashValue hashValue = hashedEntries.get(dataEntry.getName());
+    if (hashValue == null) {
+      final MessageDigest md = algorithm.getDigest();
+      try {
+        tarArchive.update(dataEntry, md, tarBytes::addAndGet);
+      } catch (IOException e) {
+        throw new FileHashException(identifier, e);
+      }
+      hashValue = algorithm.createHashValue(md.digest());
+      hashedEntries.put(dataEntry.getName(), hashValue);
+    } else {
+      // a link to an entry hashed before counts as hashed at once
+      tarBytes.addAndGet(dataEntry.getSize());
+    }
+    return hashValue;
+  }
+
+  private String getIdentifier(final Path filePath) {
+    return root.relativize(filePath).toString();
+  }
+
+  private void writeOrderFile(final Path orderFilePath) throws IOException {
+    try (Writer fstream = new OutputStreamWriter(Files.newOutputStream(orderFilePath), OrderUtil.CHARSET)) {
+      fileOrder.writeTo(fstream);
+    }
+  }
+
+  private static void writeIntegrityFile(final Path integrityFilePath, final HashForest<DigestHashValue> hf)
+      throws IOException {
+    try (OutputStream os = Files.newOutputStream(integrityFilePath)) {
+      hf.writeTo(os);
+    }
+  }
+
+  private boolean extendIntegrityInformation() {
+    if (tarArchive != null) {
+      out.println("Integrit\u00e4tsinformationen in einem TAR-Archiv k\u00f6nnen nicht erweitert werden.");
+      return false;
+    }
+    if (!readIntegrityFile() || !readFileOrder()) {
+      return false;
+    }
+    final HashForest<DigestHashValue> hf = expectedHashForest;
+    final List<String> identifiers = fileOrder.getIdentifiers();
+    if (hf.getMode() != HashForest.Mode.FULL || hf.getLeafs().size() != identifiers.size()) {
+      out.println("Nur Integrit\u00e4tsinformationen mit vollem Hash-Baum k\u00f6nnen erweitert werden.");
+      return false;
+    }
+    final Path orderFilePath = root.resolve(OrderUtil.ORDERFILENAME);
+    final Path integrityFilePath = root.resolve(HashForest.INTEGRITYFILENAME);
+    final Path orderTempPath = root.resolve(OrderUtil.ORDERFILENAME + TEMP_SUFFIX);
+    final Path integrityTempPath = root.resolve(HashForest.INTEGRITYFILENAME + TEMP_SUFFIX);
+    // left over by an interrupted extension, they mustn't be taken for new files
+    if (!deleteTempFiles(orderTempPath, integrityTempPath)) {
+      return false;
+    }
+    final Set<String> listedFiles = new HashSet<String>(identifiers);
+    final List<String> newFiles = new ArrayList<String>();
+    final List<Path> fileList = getFileList();
+    if (fileList == null) {
+      return false;
+    }
+    for (final Path filePath : fileList) {
+      final String identifier = getIdentifier(filePath);
+      if (!filePath.equals(integrityFilePath) && !listedFiles.contains(identifier)) {
+        newFiles.add(identifier);
+      }
+    }
+    try {
+      startPhase("hash_files");
+      hashFiles(newFiles, hf.getAlgorithm(), (index, identifier, hashValue) -> hf.update(hashValue));
+      startPhase("write_integrity_file");
+      for (final String identifier : newFiles) {
+        fileOrder.add(identifier);
+      }
+      // both files are replaced only when both are written, the integrity file last
+      writeOrderFile(orderTempPath);
+      // the order file is the first leaf and has changed
+      hf.replaceLeaf(0, FileUtil.getHash(orderTempPath, hf.getAlgorithm()));
+      if (format != null) {
+        hf.setFormat(format);
+      }
+      writeIntegrityFile(integrityTempPath, hf);
+      replaceFile(orderTempPath, orderFilePath);
+      replaceFile(integrityTempPath, integrityFilePath);
+    } catch (FileHashException e) {
+      printFileHashError(e);
+      deleteTempFiles(orderTempPath, integrityTempPath);
+      return false;
+    } catch (IOException e) {
+      out.println("Beim schreiben der Integrit\u00e4tsinformationen kam es zu einem Fehler.");
+      out.println(e.getMessage());
+      deleteTempFiles(orderTempPath, integrityTempPath);
+      return false;
+    }
+    fileCount = fileOrder.getIdentifiers().size();
+    out.println(newFiles.size() + " Dateien wurden zu den Integrit\u00e4tsinformationen f\u00fcr das Nutzungspaket \""
+      + dipDir + "\" hinzugef\u00fcgt.\n");
+    return true;
+  }
+
+  private static void replaceFile(final Path source, final Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private boolean deleteTempFiles(final Path... tempFiles) {
+    try {
+      for (final Path tempFile : tempFiles) {
+        Files.deleteIfExists(tempFile);
+      }
+    } catch (IOException e) {
+      out.println("Es gab einen Fehler beim L\u00f6schen tempor\u00e4rer Integrit\u00e4tsinformationen.");
+      out.println(e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  private boolean generateIntegrityFile(final Path integrityFilePath) {
+    final List<String> fileOrderList = fileOrder.getIdentifiers();
+    // in roots and partial mode only the stored nodes are kept while hashing
+    final HashForest<DigestHashValue> hf = new HashForest<DigestHashValue>(mode, partialDepth, algorithm);
+    if (manifestAlgorithms != null) {
+      hashUtil.setManifest(new Manifest(manifestAlgorithms));
+    }
+    try {
+      startPhase("hash_files");
+      hashFiles(fileOrderList, algorithm, (index, identifier, hashValue) -> hf.update(hashValue));
+      startPhase("write_integrity_file");
+      writeNewIntegrityFile(integrityFilePath, hf);
+    } catch (FileHashException e) {
+      printFileHashError(e);
+      return false;
+    } catch (IOException e) {
+      out.println("Beim schreiben der Integrit\u00e4tsinformationen kam es zu einem Fehler.");
+      out.println(e.getMessage());
+      return false;
+    }
+    if (hashUtil.getManifest() == null) {
+      return true;
+    }
+    startPhase("write_manifest");
+    return writeManifest(hashUtil.getManifest());
+  }
+
+  private void writeNewIntegrityFile(final Path integrityFilePath, final HashForest<DigestHashValue> hf)
+      throws IOException {
+    hf.setOrderInformationLocation(OrderUtil.ORDERFILENAME);
+    hf.setFormat(format != null ? format : HashForest.Format.TEXT);
+    Files.createFile(integrityFilePath);
+    writeIntegrityFile(integrityFilePath, hf);
+  }
+
+  /*
+   * Builds order and hash forest from the manifest, only the order file is
+   * hashed. All listed files must exist, a sample of them is read and
+   * compared with the manifest before anything is written.
+   */
+  private boolean importIntegrityInformation(final Path orderFilePath, final Path integrityFilePath) {
+    final Manifest manifest = readImportManifest();
+    if (manifest == null || !checkImportedFiles(manifest) || !verifyImportSample(manifest)) {
+      return false;
+    }
+    final List<Path> fileList = new ArrayList<Path>();
+    for (final String identifier : manifest.getIdentifiers()) {
+      fileList.add(root.resolve(identifier));
+    }
+    if (!generateOrderFile(orderFilePath, fileList)) {
+      return false;
+    }
+    startPhase("write_integrity_file");
+    final HashForest<DigestHashValue> hf = new HashForest<DigestHashValue>(mode, partialDepth, algorithm);
+    try {
+      hf.update(FileUtil.getHash(orderFilePath, algorithm));
+      for (int i = 0; i < manifest.size(); ++i) {
+        hf.update(algorithm.createHashValue(manifest.getDigest(algorithm.getName(), i)));
+      }
+      writeNewIntegrityFile(integrityFilePath, hf);
+    } catch (IOException e) {
+      out.println("Beim schreiben der Integrit\u00e4tsinformationen kam es zu einem Fehler.");
+      out.println(e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  private Manifest readImportManifest() {
+    startPhase("read_manifest");
+    final Path manifestFile = importFile.isAbsolute() ? importFile : root.resolve(importFile.toString());
+    try (Reader reader = Files.newBufferedReader(manifestFile, Manifest.CHARSET)) {
+      return Manifest.readFrom(algorithm.getName(), reader);
+    } catch (IOException e) {
+      out.println("Das Manifest \"" + manifestFile + "\" kann nicht gelesen werden.");
+      out.println(e.getMessage());
+    } catch (InvalidInputException e) {
+      out.println("Das Manifest \"" + manifestFile + "\" enth\u00e4lt keine g\u00fcltigen "
+        + algorithm.getName() + "-Pr\u00fcfsummen.");
+      out.println(e.getMessage());
+    }
+    return null;
+  }
+
+  private boolean checkImportedFiles(final Manifest manifest) {
+    startPhase("check_files");
+    for (final String identifier : manifest.getIdentifiers()) {
+      final Path filePath = root.resolve(identifier).normalize();
+      if (!filePath.startsWith(root) || filePath.equals(root.resolve(OrderUtil.ORDERFILENAME))
+          || filePath.equals(root.resolve(HashForest.INTEGRITYFILENAME))) {
+        out.println("Die Datei \"" + identifier + "\" aus dem Manifest geh\u00f6rt nicht zum Nutzungspaket.");
+        return false;
+      }
+      if (!Files.isRegularFile(filePath)) {
+        out.println(ErrorUtil.getFileErrorMessage(identifier, ErrorUtil.ErrorType.FILE_NOT_FOUND));
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Reads a random sample of verifyPercent percent of the files (at least
+   * one if the percentage isn't 0) and compares them with the manifest.
+   */
+  private boolean verifyImportSample(final Manifest manifest) {
+    final int sampleSize = (int) Math.ceil(manifest.size() * verifyPercent / 100.0);
+    if (sampleSize == 0) {
+      return true;
+    }
+    final List<Integer> indices = new ArrayList<Integer>();
+    for (int i = 0; i < manifest.size(); ++i) {
+      indices.add(i);
+    }
+    Collections.shuffle(indices, new Random());
+    final List<Integer> sample = new ArrayList<Integer>(indices.subList(0, sampleSize));
+    // reading the files in the order of the manifest is faster on most storage
+    Collections.sort(sample);
+    final List<String> identifiers = new ArrayList<String>();
+    for (final int index : sample) {
+      identifiers.add(manifest.getIdentifiers().get(index));
+    }
+    final List<String> modifiedFiles = new ArrayList<String>();
+    startPhase("verify_sample");
+    // the sample must be read from disk, not taken from the cache
+    hashUtil.setDigestCache(null);
+    try {
+      hashFiles(identifiers, algorithm, (index, identifier, hashValue) -> {
+        final int manifestIndex = sample.get(index);
+        if (!hashValue.equals(algorithm.createHashValue(manifest.getDigest(algorithm.getName(), manifestIndex)))) {
+          modifiedFiles.add(identifier);
+        }
+      });
+    } catch (FileHashException e) {
+      printFileHashError(e);
+      return false;
+    }
+    out.println(sampleSize + " von " + manifest.size() + " Dateien wurden mit dem Manifest abgeglichen.");
+    if (!modifiedFiles.isEmpty()) {
+      out.println("Es existieren Dateien, die nicht dem Manifest entsprechen:");
+      modifiedFiles.forEach(out::println);
+      out.println();
+      return false;
+    }
+    return true;
+  }
+
+  private boolean writeManifest(final Manifest manifest) {
+    try {
+      Files.createDirectories(manifestDir);
+      manifest.write(manifestDir);
+    } catch (IOException e) {
+      out.println("Beim schreiben der Manifeste nach \"" + manifestDir + "\" kam es zu einem Fehler.");
+      out.println(e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  private void printIntegrityFileCreationSuccessMessage(final Path integrityFilePath, final Path orderFilePath) {
+    final StringBuilder statusMessage = new StringBuilder(500);
+    statusMessage.append("\nDie Integrit\u00e4tsinformationen f\u00fcr das Nutzungspaket \"");
+    statusMessage.append(dipDir);
+    statusMessage.append("\" wurden erfolgreich erstellt.\n\n");
+    statusMessage.append(fileCount);
+    statusMessage.append(" Dateien wurden f\u00fcr die Erstellung der Integrit\u00e4tsinformationen ber\u00fccksichtigt.\n");
+    if (mode == HashForest.Mode.FULL) {
+      statusMessage.append("\nIn die Integrit\u00e4tsdatei wurde der komplette Hash-Forest geschrieben.\n");
+    } else if (mode == HashForest.Mode.PARTIAL) {
+      statusMessage.append("\nIn die Integrit\u00e4tsdatei wurden die Hash-Trees bis zur Tiefe ");
+      statusMessage.append(partialDepth);
+      statusMessage.append(" geschrieben.\n");
+    } else {
+      statusMessage.append("\nIn die Integrit\u00e4tsdatei wurden nur die Wurzeln der Hash-Trees geschrieben.\n");
+    }
+    statusMessage.append("\nDie Integrit\u00e4tsdatei wurde unter \"");
+    statusMessage.append(integrityFilePath);
+    statusMessage.append("\" gespeichert.\n");
+    statusMessage.append("Die Ordnungsdatei wurde unter \"");
+    statusMessage.append(orderFilePath);
+    statusMessage.append("\" gespeichert.\n");
+    if (hashUtil.getManifest() != null) {
+      statusMessage.append("Die Manifeste wurden unter \"");
+      statusMessage.append(manifestDir);
+      statusMessage.append("\" gespeichert.\n");
+    }
+    out.println(statusMessage);
+  }
+
+  private Status testIntegrityInformation() {
+    if (!readIntegrityFile() || !readFileOrder() || !readDipFiles()) {
+      return Status.ERROR;
+    }
+    return validateDip();
+  }
+
+  private boolean readIntegrityFile() {
+    startPhase("read_integrity_file");
+    out.println("\nDatei-Integrit\u00e4tsinformationen werden eingelesen.\n");
+    boolean success = true;
+    expectedHashForest = new HashForest<DigestHashValue>(DigestHashValue.class);
+    expectedHashForest.setParallel(true);
+    try (InputStream is = openIntegrityComponent(HashForest.INTEGRITYFILENAME)) {
+      if (is != null) {
+        expectedHashForest.readFrom(is);
+      } else {
+        success = false;
+        out.println(ErrorUtil.getFileErrorMessage(
+          HashForest.INTEGRITYFILENAME,
+          ErrorUtil.ErrorType.FILE_NOT_READABLE
+        ));
+      }
+    } catch (FileNotFoundException e) {
+      out.println(ErrorUtil.getFileErrorMessage(
+        HashForest.INTEGRITYFILENAME,
+        ErrorUtil.ErrorType.FILE_NOT_FOUND
+      ));
+      success = false;
+    } catch (IOException e) {
+      out.println(ErrorUtil.getFileErrorMessage(
+        HashForest.INTEGRITYFILENAME,
+        ErrorUtil.ErrorType.FILE_NOT_READABLE
+      ));
+      success = false;
+    } catch (InvalidInputException e) {
+      out.println(ErrorUtil.getFileErrorMessage(
+        HashForest.INTEGRITYFILENAME,
+        ErrorUtil.ErrorType.FILE_FORMAT_INVALID
+      ));
+      success = false;
+    }
+    return success;
+  }
+
+  private boolean readFileOrder() {
+    startPhase("read_order_file");
+    out.println("Datei-Ordnungsinformationen werden eingelesen.\n");
+    boolean success = true;
+    try (InputStream is = openIntegrityComponent(OrderUtil.ORDERFILENAME)) {
+      if (is != null) {
+        final ChecksumUtil checksumProvider = new ChecksumUtil(MessageDigest.getInstance("SHA-512"));
+        fileOrder = new OrderUtil(checksumProvider);
+        fileOrder.readFrom(new InputStreamReader(is, OrderUtil.CHARSET));
+        fileCount = fileOrder.getIdentifiers().size();
+      } else {
+        success = false;
+        out.println(ErrorUtil.getFileErrorMessage(
+          OrderUtil.ORDERFILENAME,
+          ErrorUtil.ErrorType.FILE_NOT_READABLE
+        ));
+      }
+    } catch (NoSuchAlgorithmException e) {
+      // clearly a developer error, reraise instead of propagating to ui
+      throw new RuntimeException(e);
+    } catch (FileNotFoundException e) {
+      out.println(ErrorUtil.getFileErrorMessage(
+        OrderUtil.ORDERFILENAME,
+        ErrorUtil.ErrorType.FILE_NOT_FOUND
+      ));
+      success = false;
+    } catch (IOException e) {
+      out.println(ErrorUtil.getFileErrorMessage(
+        OrderUtil.ORDERFILENAME,
+        ErrorUtil.ErrorType.FILE_NOT_READABLE
+      ));
+      success = false;
+    } catch (InvalidInputException e) {
+      out.println(ErrorUtil.getFileErrorMessage(
+        OrderUtil.ORDERFILENAME,
+        ErrorUtil.ErrorType.FILE_FORMAT_INVALID
+      ));
+      success = false;
+    }
+    return success;
+  }
+
+  /*
+   * Opens an integrity file of the DIP, returns null if it's missing or
+   * empty.
+   */
+  private InputStream openIntegrityComponent(final String name) throws IOException {
+    if (tarArchive != null) {
+      final TarArchive.Entry entry = tarEntries.get(name);
+      return entry == null || !entry.isFile() || entry.getSize() == 0
+        ? null
+        : new ByteArrayInputStream(tarArchive.read(entry));
+    }
+    final Path file = root.resolve(name);
+    return Files.isRegularFile(file) && Files.isReadable(file) && Files.size(file) != 0
+      ? Files.newInputStream(file)
+      : null;
+  }
+
+  private boolean readDipFiles() {
+    startPhase("hash_files");
+    actualHashForest = new HashForest<DigestHashValue>(
+      expectedHashForest.getMode(),
+      expectedHashForest.getDepth(),
+      expectedHashForest.getAlgorithm()
+    );
+    // each tree is validated as soon as its last file is hashed
+    validator = new StreamingValidator<DigestHashValue>(expectedHashForest, actualHashForest, isFailFast);
+    boolean success = true;
+    try {
+      hashFiles(fileOrder.getIdentifiers(), expectedHashForest.getAlgorithm(), (index, fileName, fileHash) -> {
+        if (!validator.update(fileHash)) {
+          hashUtil.cancel();
+        }
+      });
+    } catch (FileHashException e) {
+      printFileHashError(e);
+      success = false;
+    }
+    return success;
+  }
+
+  private Status validateDip() {
+    startPhase("validate");
+    out.println("\nIntegrit\u00e4t des Nutzungspakets wird \u00fcberpr\u00fcft.");
+    if (hashUtil.isCancelled()) {
+      out.println("\nDie Pr\u00fcfung wurde beim ersten fehlerhaften Hash-Baum abgebrochen.");
+      out.println("\nDie Pr\u00fcfung ist fehlgeschlagen. Ihr Nutzungspaket ist besch\u00e4digt oder ver\u00e4ndert.\n");
+      return Status.INVALID;
+    } else if (validator.finish()) {
+      out.println("\nDie Pr\u00fcfung wurde erfolgreich beendet. Ihr Nutzungspaket ist unver\u00e4ndert.\n");
+      return Status.SUCCESS;
+    }
+    out.println("\nDie Pr\u00fcfung ist fehlgeschlagen. Ihr Nutzungspaket ist besch\u00e4digt oder ver\u00e4ndert.\n");
+    printModifiedFiles();
+    return Status.INVALID;
+  }
+
+  private void printModifiedFiles() {
+    final HashForest.Mode mode = expectedHashForest.getMode();
+    final List<String> fileList = fileOrder.getIdentifiers();
+    if (mode == HashForest.Mode.ROOTS) {
+      return;
+    }
+    final BitSet modifiedFiles = expectedHashForest.findModifiedLeafs(actualHashForest);
+    if (modifiedFiles.isEmpty() || modifiedFiles.length() > fileList.size()) {
+      return;
+    }
+    if (mode == HashForest.Mode.FULL) {
+      out.println("Es existieren Dateien, die nicht ihrer Originalversion entsprechen:");
+    } else {
+      out.println("Die Ver\u00e4nderung betrifft eine oder mehrere der folgenden Dateien:");
+    }
+    modifiedFiles.stream().forEach(index -> out.println(fileList.get(index)));
+    out.println();
+  }
+
+  /*
+   * Returns the regular files of the DIP or null if the directory can't be
+   * read.
+   */
+  private List<Path> getFileList() {
+    startPhase("list_files");
+    try (Stream<Path> files = Files.walk(root)) {
+      return files.filter(Files::isRegularFile).collect(Collectors.toList());
+    } catch (IOException | UncheckedIOException e) {
+      out.println("Die Dateien in ihrem Nutzungspaket k\u00f6nnen nicht ausgelesen werden.");
+      out.println(e.getMessage());
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Machine-readable events of the DIP jobs for monitoring, written as NDJSON:
+ * one JSON object per line with at least the fields time, event and dip.
+ * All jobs of a batch share one log, every event is written and flushed as
+ * a whole line.
+ *
+ * A failed write doesn't abort the jobs, the first error is thrown by
+ * close().
+ */
+class EventLog implements Closeable {
+
+  private final Writer writer;
+  private IOException error = null;
+
+  EventLog(final Path file) throws IOException {
+    writer = Files.newBufferedWriter(file, BatchReport.CHARSET);
+  }
+
+  /**
+   * One line of the log, the fields are written in the order they're added.
+   */
+  static class Event {
+
+    private final StringBuilder line = new StringBuilder(200);
+
+    Event(final String type, final Path dipDir) {
+      line.append("{\"time\":").append(BatchReport.jsonString(Instant.now().toString()));
+      add("event", type);
+      add("dip", dipDir.toString());
+    }
+
+    Event add(final String key, final String value) {
+      return addRaw(key, BatchReport.jsonString(value));
+    }
+
+    Event add(final String key, final long value) {
+      return addRaw(key, Long.toString(value));
+    }
+
+    Event add(final String key, final double value) {
+      return addRaw(key, String.format(Locale.ROOT, "%.1f", value));
+    }
+
+    Event add(final String key, final Map<String, Long> values) {
+      final StringBuilder object = new StringBuilder("{");
+      for (final Map.Entry<String, Long> entry : values.entrySet()) {
+        if (object.length() > 1) {
+          object.append(',');
+        }
+        object.append(BatchReport.jsonString(entry.getKey())).append(':').append(entry.getValue());
+      }
+      return addRaw(key, object.append('}').toString());
+    }
+
+    private Event addRaw(final String key, final String json) {
+      line.append(',').append(BatchReport.jsonString(key)).append(':').append(json);
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return line + "}";
+    }
+  }
+
+  synchronized void write(final Event event) {
+    if (error != null) {
+      return;
+    }
+    try {
+      writer.write(event.toString());
+      writer.write("\n");
+      writer.flush();
+    } catch (IOException e) {
+      error = e;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    writer.close();
+    if (error != null) {
+      throw error;
+    }
+  }
+
+}
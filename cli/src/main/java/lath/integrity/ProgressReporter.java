@@ -0,0 +1,176 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Reports the progress of hashing the files of a DIP at a fixed interval
+ * instead of once per file: files per second, MB per second and the
+ * estimated remaining time. The remaining time is derived from the bytes
+ * still to read, so it is also known within a single large file and isn't
+ * skewed by files of very different sizes. Only if all files are empty the
+ * files still to hash are used. The progress line is refreshed in place on
+ * a console, otherwise a new line is printed per interval. Progress events
+ * are written to the event log at the same interval.
+ *
+ * The reports are made by a timer thread, so the progress is also shown
+ * while a single large file is read. update() only records the number of
+ * hashed files and is cheap enough to be called for every file.
+ */
+class ProgressReporter {
+
+  static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+  private final PrintStream out;
+  private final boolean isInPlace;
+  private final EventLog eventLog;
+  private final DipJob job;
+  private final int totalFiles;
+  private final long totalBytes;
+  private final LongSupplier bytes;
+  private final long startNanos;
+  private final ScheduledExecutorService timer;
+  private volatile int files = 0;
+  // guarded by this
+  private boolean isFinished = false;
+  private int lineLength = 0;
+
+  /**
+   * @param out stream of the progress line, null for none
+   * @param isInPlace refresh the progress line with a carriage return
+   * @param eventLog log of the progress events, null for none
+   * @param job job whose files are hashed
+   * @param totalFiles number of files to hash
+   * @param totalBytes number of bytes to hash
+   * @param bytes source of the number of bytes hashed so far, polled by the timer thread
+   * @param intervalMillis time between two reports
+   */
+  ProgressReporter(
+    final PrintStream out,
+    final boolean isInPlace,
+    final EventLog eventLog,
+    final DipJob job,
+    final int totalFiles,
+    final long totalBytes,
+    final LongSupplier bytes,
+    final long intervalMillis
+  ) {
+    this.out = out;
+    this.isInPlace = isInPlace;
+    this.eventLog = eventLog;
+    this.job = job;
+    this.totalFiles = totalFiles;
+    this.totalBytes = totalBytes;
+    this.bytes = bytes;
+    startNanos = System.nanoTime();
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "dip-progress");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param files number of files hashed so far
+   */
+  void update(final int files) {
+    this.files = files;
+  }
+
+  /**
+   * Stops the timer and reports the final state, the progress line is
+   * completed.
+   */
+  void finish() {
+    timer.shutdownNow();
+    synchronized (this) {
+      report();
+      isFinished = true;
+      if (out != null && isInPlace) {
+        out.println();
+      }
+    }
+  }
+
+  private synchronized void report() {
+    if (isFinished) {
+      return;
+    }
+    final double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+    final int files = this.files;
+    final long readBytes = bytes.getAsLong();
+    final double filesPerSecond = files / seconds;
+    final double bytesPerSecond = readBytes / seconds;
+    // -1 while nothing is hashed yet
+    final long etaSeconds;
+    if (totalBytes > 0) {
+      etaSeconds = readBytes == 0 ? -1 : Math.round(Math.max(totalBytes - readBytes, 0) / bytesPerSecond);
+    } else {
+      etaSeconds = files == 0 ? -1 : Math.round((totalFiles - files) / filesPerSecond);
+    }
+    if (out != null) {
+      final String line = String.format(
+        Locale.GERMAN,
+        "Datei %d von %d eingelesen, %.0f Dateien/s, %.1f MB/s, noch %s",
+        files, totalFiles, filesPerSecond, bytesPerSecond / 1e6,
+        etaSeconds < 0 ? "unbekannt" : formatDuration(etaSeconds)
+      );
+      if (isInPlace) {
+        // blanks overwrite the rest of a longer previous line
+        out.print("\r" + line + repeat(' ', lineLength - line.length()));
+        out.flush();
+        lineLength = line.length();
+      } else {
+        out.println(line);
+      }
+    }
+    if (eventLog != null) {
+      eventLog.write(new EventLog.Event("progress", job.getDipDir())
+        .add("operation", job.getOperation().toString())
+        .add("files", files)
+        .add("totalFiles", totalFiles)
+        .add("bytes", readBytes)
+        .add("totalBytes", totalBytes)
+        .add("filesPerSecond", filesPerSecond)
+        .add("bytesPerSecond", bytesPerSecond)
+        .add("etaSeconds", etaSeconds));
+    }
+  }
+
+  static String formatDuration(final long seconds) {
+    return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+
+  private static String repeat(final char c, final int count) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+}
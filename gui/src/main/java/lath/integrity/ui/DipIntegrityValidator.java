@@ -20,19 +20,8 @@
 package lath.integrity.ui;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
 
 import javafx.application.Application;
-import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -52,18 +41,11 @@ import javafx.scene.paint.Color;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 
-import lath.integrity.error.InvalidInputException;
-import lath.integrity.hashforest.HashForest;
-import lath.integrity.hashforest.SHA512HashValue;
-import lath.integrity.util.ChecksumUtil;
-import lath.integrity.util.ErrorUtil;
-import lath.integrity.util.FileUtil;
-import lath.integrity.util.OrderUtil;
-
 public class DipIntegrityValidator extends Application {
 
   // user interface
   private final Button chooseDipButton = new Button("Verzeichnis w\u00e4hlen");
+  private final Button cancelButton = new Button("Abbrechen");
   private final ObservableList<Task> taskList = FXCollections.observableArrayList();
   private final ListView<Task> taskListView = new ListView<Task>(taskList);
   private static final int TASK_LIST_ITEM_HEIGHT = 50;
@@ -80,7 +62,7 @@ public class DipIntegrityValidator extends Application {
   private final Region warningMessageSpacer = new Region();
   private final Region controlSpacer = new Region();
   private final Region bottomSpacer = new Region();
-  private final HBox controlLayout = new HBox(chooseDipButton);
+  private final HBox controlLayout = new HBox(10, chooseDipButton, cancelButton);
 
   private final VBox messageLayout = new VBox(
     errorMessageLabel,
@@ -102,10 +84,8 @@ public class DipIntegrityValidator extends Application {
   );
   private final Scene scene = new Scene(rootLayout, 600, 700);
 
-  // integrity check
-  private HashForest<SHA512HashValue> expectedHashForrest;
-  private HashForest<SHA512HashValue> actualHashForrest;
-  private OrderUtil fileOrder;
+  // integrity check, runs on a background thread
+  private final ValidationService validationService = new ValidationService();
 
   public static void main(String[] args) {
     launch(args);
@@ -153,12 +133,93 @@ public class DipIntegrityValidator extends Application {
       addSelectDipTask();
       final File dipDir = selectDipDir(primaryStage);
       if (dipDir != null) {
-        taskList.get(0).progress = 1.0;
-        if(readIntegrityFile(dipDir) && readFileOrder(dipDir) && readDipFiles(dipDir)) {
-          validateDip();
-        }
+        finishLastTask();
+        validationService.setDipDir(dipDir.toPath());
+        validationService.restart();
+      }
+    });
+    cancelButton.setOnAction(actionEvent -> validationService.cancel());
+    // only one validation at a time, it can be cancelled while it runs
+    chooseDipButton.disableProperty().bind(validationService.runningProperty());
+    cancelButton.visibleProperty().bind(validationService.runningProperty());
+    cancelButton.managedProperty().bind(validationService.runningProperty());
+    validationService.stepProperty().addListener((observable, oldStep, newStep) -> {
+      if (newStep != null) {
+        startTask(newStep);
+      }
+    });
+    validationService.messageProperty().addListener((observable, oldMessage, newMessage) -> {
+      if (validationService.getStep() == ValidationService.Step.DIP_FILES && !newMessage.isEmpty()) {
+        final Task task = taskList.get(taskList.size() - 1);
+        task.description = newMessage;
+        updateTask(task);
+      }
+    });
+    validationService.progressProperty().addListener((observable, oldProgress, newProgress) -> {
+      if (validationService.getStep() == ValidationService.Step.DIP_FILES && newProgress.doubleValue() >= 0) {
+        final Task task = taskList.get(taskList.size() - 1);
+        task.progress = newProgress.doubleValue();
+        updateTask(task);
       }
     });
+    validationService.setOnSucceeded(workerEvent -> showResult(validationService.getValue()));
+    validationService.setOnCancelled(workerEvent -> {
+      finishLastTask();
+      showErrorMessage("Die Pr\u00fcfung wurde abgebrochen.");
+    });
+    validationService.setOnFailed(workerEvent -> {
+      finishLastTask();
+      showErrorMessage(
+        "Bei der Pr\u00fcfung ist ein unerwarteter Fehler aufgetreten.",
+        String.valueOf(validationService.getException())
+      );
+    });
+  }
+
+  private void startTask(final ValidationService.Step step) {
+    finishLastTask();
+    switch (step) {
+      case INTEGRITY_FILE:
+        taskList.add(new Task("2. Datei-Integrit\u00e4tsinformationen werden eingelesen."));
+        break;
+      case FILE_ORDER:
+        taskList.add(new Task("3. Datei-Ordnungsinformationen werden eingelesen."));
+        break;
+      case DIP_FILES:
+        taskList.add(new Task(ValidationService.getFileReadingMessage(1, 1), false));
+        break;
+      default:
+        taskList.add(new Task("5. Integrit\u00e4t des Nutzungspakets wird \u00fcberpr\u00fcft."));
+        break;
+    }
+  }
+
+  private void finishLastTask() {
+    final Task task = taskList.get(taskList.size() - 1);
+    task.progress = 1.0;
+    updateTask(task);
+  }
+
+  /*
+   * The fields of a task aren't observable, so the item is replaced to
+   * repaint its cell.
+   */
+  private void updateTask(final Task task) {
+    taskList.set(taskList.indexOf(task), task);
+  }
+
+  private void showResult(final ValidationService.Result result) {
+    finishLastTask();
+    if (result.warningMessage != null) {
+      showWarningMessage(result.warningMessage, result.warningAdditionalInfo);
+    }
+    if (result.outcome == ValidationService.Outcome.SUCCESS) {
+      showSuccessMessage(result.message);
+    } else if (result.additionalInfo != null) {
+      showErrorMessage(result.message, result.additionalInfo);
+    } else {
+      showErrorMessage(result.message);
+    }
   }
 
   private void initTaskListView() {
@@ -270,216 +331,4 @@ public class DipIntegrityValidator extends Application {
     return fileChooser.showDialog(primaryStage);
   }
 
-  private boolean readIntegrityFile(final File dipDir) {
-    final int taskId = taskList.size();
-    taskList.add(new Task("2. Datei-Integrit\u00e4tsinformationen werden eingelesen."));
-    boolean success = true;
-    expectedHashForrest = new HashForest<SHA512HashValue>();
-    File integrityFile = new File(dipDir, HashForest.INTEGRITYFILENAME);
-    if (integrityFile.isFile() && integrityFile.canRead() && integrityFile.length() != 0) {
-      try {
-        expectedHashForrest.readFrom(new FileReader(integrityFile, HashForest.CHARSET));
-      } catch (FileNotFoundException e) {
-        showErrorMessage(ErrorUtil.getFileErrorMessage(
-          HashForest.INTEGRITYFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_FOUND
-        ));
-        success = false;
-      } catch (IOException e) {
-        showErrorMessage(ErrorUtil.getFileErrorMessage(
-          HashForest.INTEGRITYFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_READABLE
-        ));
-        success = false;
-      } catch (InvalidInputException e) {
-        if (e.getErrorType() == InvalidInputException.ErrorType.SCHEMA_INVALID) {
-          showErrorMessage(ErrorUtil.getFileErrorMessage(
-            OrderUtil.ORDERFILENAME,
-            ErrorUtil.ErrorType.FILE_FORMAT_INVALID
-          ));
-        } else if (e.getErrorType() == InvalidInputException.ErrorType.CHECKSUM_INVALID)  {
-          showErrorMessage(ErrorUtil.getFileErrorMessage(
-            OrderUtil.ORDERFILENAME,
-            ErrorUtil.ErrorType.FILE_CHECKSUM_INVALID
-          ));
-        }
-        success = false;
-      }
-    } else {
-      success = false;
-      showErrorMessage(ErrorUtil.getFileErrorMessage(
-        HashForest.INTEGRITYFILENAME,
-        ErrorUtil.ErrorType.FILE_NOT_READABLE
-      ));
-    }
-    taskList.get(taskId).progress = 1.0;
-    return success;
-  }
-
-  private boolean readFileOrder(final File dipDir) {
-    final int taskId = taskList.size();
-    taskList.add(new Task("3. Datei-Ordnungsinformationen werden eingelesen."));
-    boolean success = true;
-    final File orderingFile = new File(dipDir, OrderUtil.ORDERFILENAME);
-    if (orderingFile.isFile() && orderingFile.canRead() && orderingFile.length() != 0) {
-      try {
-        final ChecksumUtil checksumProvider = new ChecksumUtil(MessageDigest.getInstance("SHA-512"));
-        fileOrder = new OrderUtil(checksumProvider);
-        fileOrder.readFrom(new FileReader(orderingFile, OrderUtil.CHARSET));
-      } catch (NoSuchAlgorithmException e) {
-        // clearly a developer error, reraise instead of propagating to ui
-        throw new RuntimeException(e);
-      } catch (FileNotFoundException e) {
-        showErrorMessage(ErrorUtil.getFileErrorMessage(
-          OrderUtil.ORDERFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_FOUND
-        ));
-        success = false;
-      } catch (IOException e) {
-        showErrorMessage(ErrorUtil.getFileErrorMessage(
-          OrderUtil.ORDERFILENAME,
-          ErrorUtil.ErrorType.FILE_NOT_READABLE
-        ));
-        success = false;
-      } catch (InvalidInputException e) {
-        if (e.getErrorType() == InvalidInputException.ErrorType.SCHEMA_INVALID) {
-          showErrorMessage(ErrorUtil.getFileErrorMessage(
-            OrderUtil.ORDERFILENAME,
-            ErrorUtil.ErrorType.FILE_FORMAT_INVALID
-          ));
-        } else if (e.getErrorType() == InvalidInputException.ErrorType.CHECKSUM_INVALID)  {
-          showErrorMessage(ErrorUtil.getFileErrorMessage(
-            OrderUtil.ORDERFILENAME,
-            ErrorUtil.ErrorType.FILE_CHECKSUM_INVALID
-          ));
-        }
-        success = false;
-      }
-    } else {
-      success = false;
-      showErrorMessage(ErrorUtil.getFileErrorMessage(
-        OrderUtil.ORDERFILENAME,
-        ErrorUtil.ErrorType.FILE_NOT_READABLE
-      ));
-    }
-    taskList.get(taskId).progress = 1.0;
-    return success && checkFileOrder(dipDir.toPath());
-  }
-
-  private boolean checkFileOrder(final Path dipDir) {
-    boolean success = true;
-    final List<String> expectedFileList = fileOrder.getIdentifiers();
-    try {
-      // get all relative file paths in dip directory
-      final List<String> actualFileList = Files.walk(dipDir)
-        .filter(Files::isRegularFile)
-        .map(path -> path.subpath(dipDir.getNameCount(), path.getNameCount()).toString())
-        .sorted()
-        .collect(Collectors.toList());
-      actualFileList.remove(HashForest.INTEGRITYFILENAME);
-      actualFileList.removeAll(expectedFileList);
-      if (actualFileList.size() > 0) {
-        final String warningMessage = "Im ausgew\u00e4hlten Verzeichnis befinden sich Dateien, "
-            + "die nicht zum Nutzungspaket geh\u00f6ren:";
-        final StringBuilder warningMessageAdditionalInfo = new StringBuilder(1000);
-        for (final String additionalFileName : actualFileList) {
-          warningMessageAdditionalInfo.append(additionalFileName);
-          warningMessageAdditionalInfo.append(" \n");
-        }
-        showWarningMessage(warningMessage, warningMessageAdditionalInfo.toString());
-      }
-    } catch (IOException e) {
-      showErrorMessage("Die Dateien in ihrem Nutzungspaket k\u00f6nnen nicht gelesen werden.");
-      success = false;
-    }
-    return success;
-  }
-
-  private boolean readDipFiles(final File dipDir) {
-    final int fileNumber = fileOrder.getIdentifiers().size();
-    int currentFile = 1;
-    final int taskId = taskList.size();
-    taskList.add(new Task(getFileReadingMessage(currentFile, fileNumber), false));
-    final Task task = taskList.get(taskId);
-    actualHashForrest = new HashForest<SHA512HashValue>();
-    boolean success = true;
-    for (String fileName : fileOrder.getIdentifiers()) {
-      try {
-        final SHA512HashValue fileHash = FileUtil.getHash(new File(dipDir, fileName).getAbsolutePath());
-        actualHashForrest.update(fileHash);
-        if (currentFile < fileNumber) ++currentFile;
-        task.description = getFileReadingMessage(currentFile, fileNumber);
-        task.progress = (double) currentFile / fileNumber;
-      } catch (NoSuchAlgorithmException e) {
-        // clearly a developer error, reraise instead of propagating to ui
-        throw new RuntimeException(e);
-      } catch (FileNotFoundException e) {
-        showErrorMessage(ErrorUtil.getFileErrorMessage(
-          fileName,
-          ErrorUtil.ErrorType.FILE_NOT_FOUND
-        ));
-        success = false;
-        break;
-      } catch (IOException e) {
-        showErrorMessage(ErrorUtil.getFileErrorMessage(
-          fileName,
-          ErrorUtil.ErrorType.FILE_NOT_READABLE
-        ));
-        success = false;
-        break;
-      }
-    }
-    return success;
-  }
-
-  private String getFileReadingMessage(final int currentFile, final int fileNumber) {
-    return "4. Datei " + currentFile + " von " + fileNumber + " wird eingelesen.";
-  }
-
-  private void validateDip() {
-    final int taskId = taskList.size();
-    taskList.add(new Task("5. Integrit\u00e4t des Nutzungspakets wird \u00fcberpr\u00fcft."));
-    if (expectedHashForrest.validate(actualHashForrest)) {
-      showSuccessMessage("Die Pr\u00fcfung wurde erfolgreich beendet. Ihr Nutzungspaket ist unver\u00e4ndert.");
-    } else {
-      handleInvalidDip();
-    }
-    taskList.get(taskId).progress = 1.0;
-  }
-
-  private void handleInvalidDip() {
-    final StringBuilder errorMessage = new StringBuilder(500);
-    errorMessage.append("Die Pr\u00fcfung ist fehlgeschlagen. "
-        + "Ihr Nutzungspaket ist besch\u00e4digt oder ver\u00e4ndert.");
-    final List<String> incorrectHashList = checkFileHashTree();
-    if (!incorrectHashList.isEmpty()) {
-      final StringBuilder errorMessageAdditionalInfo = new StringBuilder(1000);
-      errorMessage.append("\n\nEs existieren Dateien, die nicht ihrer Originalversion entsprechen:");
-      for (final String incorrectHashFile : incorrectHashList) {
-        errorMessageAdditionalInfo.append(incorrectHashFile);
-        errorMessageAdditionalInfo.append(" \n");
-      }
-      showErrorMessage(errorMessage.toString(), errorMessageAdditionalInfo.toString());
-    } else {
-      showErrorMessage(errorMessage.toString());
-    }
-  }
-
-  private List<String> checkFileHashTree() {
-    final List<String> incorrectHashList = new ArrayList<String>();
-    if (expectedHashForrest.getMode() == HashForest.Mode.FULL) {
-      final List<String> fileList = fileOrder.getIdentifiers();
-      final List<SHA512HashValue> expectedLeafList = expectedHashForrest.getLeafs();
-      final List<SHA512HashValue> actualLeafList = actualHashForrest.getLeafs();
-      if (expectedLeafList.size() == actualLeafList.size() && actualLeafList.size() == fileList.size()) {
-        for (int index = 0; index < expectedLeafList.size(); ++index) {
-          if (!expectedLeafList.get(index).equals(actualLeafList.get(index))) {
-            incorrectHashList.add(fileList.get(index));
-          }
-        }
-      }
-    }
-    return incorrectHashList;
-  }
-
 }
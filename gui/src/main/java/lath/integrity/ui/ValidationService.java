@@ -0,0 +1,451 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.concurrent.Service;
+
+import lath.integrity.error.FileHashException;
+import lath.integrity.error.InvalidInputException;
+import lath.integrity.hashforest.DigestHashValue;
+import lath.integrity.hashforest.HashForest;
+import lath.integrity.hashforest.StreamingValidator;
+import lath.integrity.util.ChecksumUtil;
+import lath.integrity.util.ErrorUtil;
+import lath.integrity.util.OrderUtil;
+import lath.integrity.util.ParallelHashUtil;
+
+/**
+ * Validates a DIP on a background thread, so the user interface stays
+ * responsive and can cancel the validation. The current step is published
+ * by {@link #stepProperty()}. While the files are read, the progress
+ * property holds the share of bytes read and the message property the
+ * number of the file, throughput and estimated remaining time. Both are
+ * updated at most every {@link #PROGRESS_INTERVAL_MILLIS} milliseconds.
+ * The value of the service is the result of the validation.
+ */
+public class ValidationService extends Service<ValidationService.Result> {
+
+  public static final long PROGRESS_INTERVAL_MILLIS = 200;
+
+  public enum Step {
+    INTEGRITY_FILE,
+    FILE_ORDER,
+    DIP_FILES,
+    VALIDATION
+  }
+
+  public enum Outcome {
+    SUCCESS,
+    INVALID,
+    ERROR
+  }
+
+  public static class Result {
+
+    public final Outcome outcome;
+    public final String message;
+    // null if there is no additional information
+    public final String additionalInfo;
+    // files in the directory that don't belong to the DIP, null if there are none
+    public final String warningMessage;
+    public final String warningAdditionalInfo;
+
+    public Result(
+      final Outcome outcome,
+      final String message,
+      final String additionalInfo,
+      final String warningMessage,
+      final String warningAdditionalInfo
+    ) {
+      this.outcome = outcome;
+      this.message = message;
+      this.additionalInfo = additionalInfo;
+      this.warningMessage = warningMessage;
+      this.warningAdditionalInfo = warningAdditionalInfo;
+    }
+  }
+
+  private final ReadOnlyObjectWrapper<Step> step = new ReadOnlyObjectWrapper<Step>();
+  private Path dipDir;
+
+  /**
+   * Sets the DIP directory of the next validation.
+   */
+  public void setDipDir(final Path dipDir) {
+    this.dipDir = dipDir;
+  }
+
+  /**
+   * Current step of the running validation, null before the first step.
+   * It changes on the JavaFX Application Thread like all properties of the
+   * service, every step is published.
+   */
+  public ReadOnlyObjectProperty<Step> stepProperty() {
+    return step.getReadOnlyProperty();
+  }
+
+  public Step getStep() {
+    return step.get();
+  }
+
+  @Override
+  protected javafx.concurrent.Task<Result> createTask() {
+    step.set(null);
+    return new ValidationTask(dipDir);
+  }
+
+  public static String getFileReadingMessage(final int currentFile, final int fileNumber) {
+    return "4. Datei " + currentFile + " von " + fileNumber + " wird eingelesen.";
+  }
+
+  static String formatBytes(final double bytes) {
+    final String[] units = {"Byte", "KB", "MB", "GB", "TB"};
+    double value = bytes;
+    int unit = 0;
+    while (value >= 1000 && unit < units.length - 1) {
+      value /= 1000;
+      ++unit;
+    }
+    return unit == 0
+      ? String.format(Locale.GERMAN, "%.0f %s", value, units[unit])
+      : String.format(Locale.GERMAN, "%.1f %s", value, units[unit]);
+  }
+
+  static String formatDuration(final long seconds) {
+    return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+
+  private class ValidationTask extends javafx.concurrent.Task<Result> {
+
+    private final Path dipDir;
+    private final ParallelHashUtil hashUtil = new ParallelHashUtil();
+    private HashForest<DigestHashValue> expectedHashForrest;
+    private HashForest<DigestHashValue> actualHashForrest;
+    private StreamingValidator<DigestHashValue> validator;
+    private OrderUtil fileOrder;
+    private String warningMessage = null;
+    private String warningAdditionalInfo = null;
+
+    // progress of reading the files, published by a timer thread
+    private long totalBytes = 0;
+    private volatile int readFiles;
+    private long startNanos;
+
+    ValidationTask(final Path dipDir) {
+      this.dipDir = dipDir;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      // stop reading files right away, pending files are skipped
+      hashUtil.cancel();
+      return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected Result call() {
+      publishStep(Step.INTEGRITY_FILE);
+      Result error = readIntegrityFile();
+      if (error != null || isCancelled()) {
+        return error;
+      }
+      publishStep(Step.FILE_ORDER);
+      error = readFileOrder();
+      if (error == null) {
+        error = checkFileOrder();
+      }
+      if (error != null || isCancelled()) {
+        return error;
+      }
+      publishStep(Step.DIP_FILES);
+      error = readDipFiles();
+      // the value of a cancelled task is ignored
+      if (error != null || isCancelled()) {
+        return error;
+      }
+      publishStep(Step.VALIDATION);
+      return validateDip();
+    }
+
+    /*
+     * Steps are published one by one instead of coalescing them like
+     * progress and message, so the user interface sees each step. A
+     * cancelled task may still be running when the next one starts, its
+     * steps are dropped.
+     */
+    private void publishStep(final Step nextStep) {
+      Platform.runLater(() -> {
+        if (!isCancelled()) {
+          step.set(nextStep);
+        }
+      });
+    }
+
+    private Result createResult(final Outcome outcome, final String message, final String additionalInfo) {
+      return new Result(outcome, message, additionalInfo, warningMessage, warningAdditionalInfo);
+    }
+
+    private Result createError(final String fileName, final ErrorUtil.ErrorType errorType) {
+      return createResult(Outcome.ERROR, ErrorUtil.getFileErrorMessage(fileName, errorType), null);
+    }
+
+    private Result createError(final String fileName, final InvalidInputException e) {
+      return createError(
+        fileName,
+        e.getErrorType() == InvalidInputException.ErrorType.CHECKSUM_INVALID
+          ? ErrorUtil.ErrorType.FILE_CHECKSUM_INVALID
+          : ErrorUtil.ErrorType.FILE_FORMAT_INVALID
+      );
+    }
+
+    private InputStream openIntegrityComponent(final String name) throws IOException {
+      final Path file = dipDir.resolve(name);
+      return Files.isRegularFile(file) && Files.isReadable(file) && Files.size(file) != 0
+        ? Files.newInputStream(file)
+        : null;
+    }
+
+    private Result readIntegrityFile() {
+      expectedHashForrest = new HashForest<DigestHashValue>(DigestHashValue.class);
+      expectedHashForrest.setParallel(true);
+      try (InputStream is = openIntegrityComponent(HashForest.INTEGRITYFILENAME)) {
+        if (is == null) {
+          return createError(HashForest.INTEGRITYFILENAME, ErrorUtil.ErrorType.FILE_NOT_READABLE);
+        }
+        expectedHashForrest.readFrom(is);
+      } catch (IOException e) {
+        return createError(HashForest.INTEGRITYFILENAME, ErrorUtil.ErrorType.FILE_NOT_READABLE);
+      } catch (InvalidInputException e) {
+        return createError(HashForest.INTEGRITYFILENAME, e);
+      }
+      return null;
+    }
+
+    private Result readFileOrder() {
+      try (InputStream is = openIntegrityComponent(OrderUtil.ORDERFILENAME)) {
+        if (is == null) {
+          return createError(OrderUtil.ORDERFILENAME, ErrorUtil.ErrorType.FILE_NOT_READABLE);
+        }
+        final ChecksumUtil checksumProvider = new ChecksumUtil(MessageDigest.getInstance("SHA-512"));
+        fileOrder = new OrderUtil(checksumProvider);
+        fileOrder.readFrom(new InputStreamReader(is, OrderUtil.CHARSET));
+      } catch (NoSuchAlgorithmException e) {
+        // clearly a developer error, reraise instead of propagating to ui
+        throw new RuntimeException(e);
+      } catch (IOException e) {
+        return createError(OrderUtil.ORDERFILENAME, ErrorUtil.ErrorType.FILE_NOT_READABLE);
+      } catch (InvalidInputException e) {
+        return createError(OrderUtil.ORDERFILENAME, e);
+      }
+      return null;
+    }
+
+    private Result checkFileOrder() {
+      final List<String> expectedFileList = fileOrder.getIdentifiers();
+      // get all relative file paths in dip directory, the sizes are needed for the progress
+      final Map<String, Long> fileSizes = new HashMap<String, Long>();
+      try {
+        Files.walkFileTree(dipDir, new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+              throws IOException {
+            final String identifier = file.subpath(dipDir.getNameCount(), file.getNameCount()).toString();
+            if (attributes.isRegularFile()) {
+              fileSizes.put(identifier, attributes.size());
+            } else if (attributes.isSymbolicLink() && Files.isRegularFile(file)) {
+              // links to files are read like files
+              fileSizes.put(identifier, Files.size(file));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+        // files listed twice count for every occurrence, like the hashed bytes, even if read only once
+        for (final String identifier : expectedFileList) {
+          totalBytes += fileSizes.getOrDefault(identifier, 0L);
+        }
+        final List<String> actualFileList = new ArrayList<String>(fileSizes.keySet());
+        Collections.sort(actualFileList);
+        actualFileList.remove(HashForest.INTEGRITYFILENAME);
+        actualFileList.removeAll(expectedFileList);
+        if (actualFileList.size() > 0) {
+          warningMessage = "Im ausgew\u00e4hlten Verzeichnis befinden sich Dateien, "
+              + "die nicht zum Nutzungspaket geh\u00f6ren:";
+          final StringBuilder additionalInfo = new StringBuilder(1000);
+          for (final String additionalFileName : actualFileList) {
+            additionalInfo.append(additionalFileName);
+            additionalInfo.append(" \n");
+          }
+          warningAdditionalInfo = additionalInfo.toString();
+        }
+      } catch (IOException e) {
+        return createResult(
+          Outcome.ERROR,
+          "Die Dateien in ihrem Nutzungspaket k\u00f6nnen nicht gelesen werden.",
+          null
+        );
+      }
+      return null;
+    }
+
+    private Result readDipFiles() {
+      final List<String> identifiers = fileOrder.getIdentifiers();
+      final int fileNumber = identifiers.size();
+      readFiles = 0;
+      startNanos = System.nanoTime();
+      publishProgress(fileNumber);
+      // inner nodes are only needed to list modified files of a full or partial hash forest
+      actualHashForrest = new HashForest<DigestHashValue>(
+        expectedHashForrest.getMode(),
+        expectedHashForrest.getDepth(),
+        expectedHashForrest.getAlgorithm()
+      );
+      hashUtil.setAlgorithm(expectedHashForrest.getAlgorithm());
+      // without inner nodes no files can be listed, so stop at the first mismatching tree
+      validator = new StreamingValidator<DigestHashValue>(
+        expectedHashForrest,
+        actualHashForrest,
+        expectedHashForrest.getMode() == HashForest.Mode.ROOTS
+      );
+      // the bytes hashed grow while a file is read, so the progress is polled
+      final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "dip-validation-progress");
+        thread.setDaemon(true);
+        return thread;
+      });
+      timer.scheduleAtFixedRate(
+        () -> publishProgress(fileNumber),
+        PROGRESS_INTERVAL_MILLIS,
+        PROGRESS_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS
+      );
+      try {
+        hashUtil.hash(dipDir, identifiers, (index, fileName, fileHash) -> {
+          if (!validator.update(fileHash) || isCancelled()) {
+            hashUtil.cancel();
+          }
+          readFiles = index + 1;
+        });
+      } catch (FileHashException e) {
+        return createError(
+          e.getFileName(),
+          e.isFileNotFound() ? ErrorUtil.ErrorType.FILE_NOT_FOUND : ErrorUtil.ErrorType.FILE_NOT_READABLE
+        );
+      } finally {
+        timer.shutdownNow();
+      }
+      publishProgress(fileNumber);
+      return null;
+    }
+
+    /*
+     * Progress and message are coalesced by the task, so only the latest
+     * values reach the user interface.
+     */
+    private void publishProgress(final int fileNumber) {
+      final int readFiles = this.readFiles;
+      final long readBytes = hashUtil.getHashedBytes();
+      if (totalBytes > 0) {
+        updateProgress(readBytes, totalBytes);
+      } else {
+        updateProgress(readFiles, Math.max(fileNumber, 1));
+      }
+      final StringBuilder message = new StringBuilder(200);
+      message.append(getFileReadingMessage(Math.min(readFiles + 1, fileNumber), fileNumber));
+      message.append("\n");
+      message.append(formatBytes(readBytes));
+      message.append(" von ");
+      message.append(formatBytes(totalBytes));
+      final double seconds = (System.nanoTime() - startNanos) / 1e9;
+      if (readBytes > 0 && seconds > 0) {
+        final double bytesPerSecond = readBytes / seconds;
+        message.append(", ");
+        message.append(formatBytes(bytesPerSecond));
+        message.append("/s, noch ");
+        message.append(formatDuration((long) Math.ceil((totalBytes - readBytes) / bytesPerSecond)));
+      }
+      updateMessage(message.toString());
+    }
+
+    private Result validateDip() {
+      if (!hashUtil.isCancelled() && validator.finish()) {
+        return createResult(
+          Outcome.SUCCESS,
+          "Die Pr\u00fcfung wurde erfolgreich beendet. Ihr Nutzungspaket ist unver\u00e4ndert.",
+          null
+        );
+      }
+      final StringBuilder errorMessage = new StringBuilder(500);
+      errorMessage.append("Die Pr\u00fcfung ist fehlgeschlagen. "
+          + "Ihr Nutzungspaket ist besch\u00e4digt oder ver\u00e4ndert.");
+      final List<String> incorrectHashList = checkFileHashTree();
+      if (incorrectHashList.isEmpty()) {
+        return createResult(Outcome.INVALID, errorMessage.toString(), null);
+      }
+      final StringBuilder errorMessageAdditionalInfo = new StringBuilder(1000);
+      if (expectedHashForrest.getMode() == HashForest.Mode.FULL) {
+        errorMessage.append("\n\nEs existieren Dateien, die nicht ihrer Originalversion entsprechen:");
+      } else {
+        errorMessage.append("\n\nDie Ver\u00e4nderung betrifft eine oder mehrere der folgenden Dateien:");
+      }
+      for (final String incorrectHashFile : incorrectHashList) {
+        errorMessageAdditionalInfo.append(incorrectHashFile);
+        errorMessageAdditionalInfo.append(" \n");
+      }
+      return createResult(Outcome.INVALID, errorMessage.toString(), errorMessageAdditionalInfo.toString());
+    }
+
+    private List<String> checkFileHashTree() {
+      final List<String> incorrectHashList = new ArrayList<String>();
+      if (expectedHashForrest.getMode() != HashForest.Mode.ROOTS) {
+        final List<String> fileList = fileOrder.getIdentifiers();
+        final BitSet modifiedFiles = expectedHashForrest.findModifiedLeafs(actualHashForrest);
+        if (modifiedFiles.length() <= fileList.size()) {
+          modifiedFiles.stream().forEach(index -> incorrectHashList.add(fileList.get(index)));
+        }
+      }
+      return incorrectHashList;
+    }
+  }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.error;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * Signals that a data file could not be hashed. Holds the identifier of the
+ * affected file, the original exception is available as cause.
+ */
+public class FileHashException extends IOException {
+
+  private static final long serialVersionUID = 3121418364880427951L;
+  private final String fileName;
+
+  public FileHashException(final String fileName, final IOException cause) {
+    super(cause.getMessage(), cause);
+    this.fileName = fileName;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * Returns true iff the file could not be hashed because it doesn't exist.
+   * @return true if the file is missing, otherwise false
+   */
+  public boolean isFileNotFound() {
+    return getCause() instanceof FileNotFoundException || getCause() instanceof NoSuchFileException;
+  }
+
+}
@@ -27,8 +27,11 @@ public class Const {
   public static final String TREES = "Trees";
   public static final String ORDER = "Order";
   public static final String MODE = "Mode";
+  public static final String DEPTH = "Depth";
+  public static final String ALGORITHM = "Algorithm";
   public static final String ROOT = "R";
   public static final String LEAF = "L";
+  public static final String NODE = "N";
   public static final String CHECKSUM = "Checksum";
 
   public static final String SEPARATOR = " ";
@@ -0,0 +1,91 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Hash value computed with one of the algorithms of {@link HashAlgorithm}.
+ * Hash values of different algorithms are never equal and can't be
+ * concatenated.
+ */
+public class DigestHashValue extends HashValue {
+
+  private final HashAlgorithm algorithm;
+
+  public DigestHashValue(HashAlgorithm algorithm, byte[] bytes) {
+    this(algorithm, bytes, true);
+  }
+
+  public DigestHashValue(HashAlgorithm algorithm, String hexDigest) {
+    this(algorithm, HashValue.hex2bytes(hexDigest), false);
+  }
+
+  // the array is only copied if it may be shared with the caller
+  DigestHashValue(HashAlgorithm algorithm, byte[] bytes, boolean copy) {
+    super(copy ? bytes.clone() : bytes);
+    if (bytes.length != algorithm.getDigestLength()) {
+      throw new IllegalArgumentException(
+        "Not a valid " + algorithm + " value, length is not exactly " + algorithm.getDigestLength() + " bytes!"
+      );
+    }
+    this.algorithm = algorithm;
+  }
+
+  public HashAlgorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  @Override
+  public HashValue concatenate(HashValue other) {
+    if (!(other instanceof DigestHashValue) || ((DigestHashValue) other).algorithm != algorithm) {
+      throw new IllegalArgumentException("Concatenation of different hash types is not supported!");
+    }
+    MessageDigest md = algorithm.getDigest();
+    md.update(bytes);
+    md.update(other.bytes);
+    return algorithm.wrap(md.digest());
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof DigestHashValue)) {
+      return false;
+    }
+    DigestHashValue other = (DigestHashValue) obj;
+    return algorithm == other.algorithm && Arrays.equals(bytes, other.bytes);
+  }
+
+  /**
+   * Returns a hash code computed from the first bytes of the digest, which
+   * are uniformly distributed. Equal hash values have equal hash codes.
+   */
+  @Override
+  public int hashCode() {
+    return NodeIndex.hash(bytes, 0);
+  }
+
+  @Override
+  public String toString() {
+    return HashValue.bytes2hex(bytes);
+  }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash algorithms that can be used to build hash forests. The name is the
+ * standard name of the Java platform and is stored in the integrity
+ * information, SHA-512 is the default and used by all integrity information
+ * without an algorithm field.
+ */
+public enum HashAlgorithm {
+  SHA_512("SHA-512", 64),
+  SHA_256("SHA-256", 32),
+  SHA_512_256("SHA-512/256", 32),
+  SHA3_256("SHA3-256", 32),
+  SHA3_512("SHA3-512", 64);
+
+  public static final HashAlgorithm DEFAULT = SHA_512;
+
+  private final String name;
+  private final int digestLength;
+
+  /*
+   * Digest used for files and concatenations, confined to the calling thread.
+   */
+  private final ThreadLocal<MessageDigest> digests;
+
+  private HashAlgorithm(String name, int digestLength) {
+    this.name = name;
+    this.digestLength = digestLength;
+    this.digests = ThreadLocal.withInitial(this::newDigest);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getDigestLength() {
+    return digestLength;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  public static HashAlgorithm fromString(String s) {
+    for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+      if (algorithm.name.equalsIgnoreCase(s)) {
+        return algorithm;
+      }
+    }
+    throw new IllegalArgumentException("Unknown hash algorithm: " + s);
+  }
+
+  /**
+   * Returns a new message digest for this algorithm.
+   * @return message digest
+   */
+  public MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(name);
+    } catch (NoSuchAlgorithmException e) {
+      // clearly a developer error, every Java platform since 9 supports these algorithms
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the reset message digest of the calling thread, it must not be
+   * passed to other threads.
+   * @return message digest
+   */
+  public MessageDigest getDigest() {
+    MessageDigest md = digests.get();
+    md.reset();
+    return md;
+  }
+
+  /**
+   * Creates a hash value of this algorithm from a copy of the given digest.
+   * SHA-512 values are created as {@link SHA512HashValue}.
+   * @param bytes digest
+   * @return hash value
+   */
+  public DigestHashValue createHashValue(byte[] bytes) {
+    return wrap(bytes.clone());
+  }
+
+  /*
+   * Returns the class of the hash values created by wrap().
+   */
+  Class<? extends DigestHashValue> getValueType() {
+    return this == SHA_512 ? SHA512HashValue.class : DigestHashValue.class;
+  }
+
+  /*
+   * Creates a hash value that takes ownership of the given array.
+   */
+  DigestHashValue wrap(byte[] bytes) {
+    if (this == SHA_512) {
+      return SHA512HashValue.wrap(bytes);
+    }
+    return new DigestHashValue(this, bytes, false);
+  }
+
+}
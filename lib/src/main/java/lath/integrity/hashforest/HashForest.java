@@ -19,31 +19,54 @@
 
 package lath.integrity.hashforest;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import lath.integrity.error.InvalidInputException;
 import lath.integrity.util.ChecksumUtil;
 import lath.integrity.util.DateUtil;
+import lath.integrity.util.HexUtil;
 import lath.integrity.util.OrderUtil;
+import lath.integrity.util.StreamSerializable;
 import lath.integrity.util.TextSerializable;
 
-public class HashForest<T extends HashValue> implements TextSerializable {
+public class HashForest<T extends HashValue> implements TextSerializable, StreamSerializable {
 
   public enum Mode {
     FULL("full"),
-    ROOTS("roots");
+    ROOTS("roots"),
+    PARTIAL("partial");
 
     private String modeString;
 
@@ -58,17 +81,66 @@ public class HashForest<T extends HashValue> implements TextSerializable {
     public static Mode fromString(String s) {
       if (s.equals(Mode.FULL.modeString)) {
         return Mode.FULL;
+      } else if (s.equals(Mode.PARTIAL.modeString)) {
+        return Mode.PARTIAL;
       } else {
         return Mode.ROOTS;  // assume roots mode as safe case
       }
     }
   }
 
+  /**
+   * Serialization format used by {@link #writeTo(OutputStream)}. The text
+   * format is version 1 of the integrity information, the binary format is
+   * version 2 and stores the digests raw, optionally deflate compressed.
+   */
+  public enum Format {
+    TEXT("text"),
+    BINARY("binary"),
+    DEFLATE("deflate");
+
+    private String formatString;
+
+    public String toString() {
+      return formatString;
+    };
+
+    private Format(String s) {
+      this.formatString = s;
+    }
+
+    public static Format fromString(String s) {
+      for (Format format : Format.values()) {
+        if (format.formatString.equals(s)) {
+          return format;
+        }
+      }
+      throw new IllegalArgumentException("Unknown format: " + s);
+    }
+  }
+
   private final static long serialVersionUID = 4159661696848135993L;
   public final static Charset CHARSET = Charset.forName("UTF-8");
   public final static String INTEGRITYFILENAME = "integritycomponent-integrity.txt";
 
-  private int version = 1;
+  public final static int TEXT_VERSION = 1;
+  public final static int BINARY_VERSION = 2;
+
+  /*
+   * The binary format starts with these bytes, the text format always
+   * starts with the version field.
+   */
+  private final static byte[] BINARY_MAGIC = {
+    (byte) 0x89, 'D', 'I', 'P', 'H', 'F', '\r', '\n'
+  };
+  private final static int FLAG_DEFLATE = 1;
+  private final static int FLAG_ALGORITHM = 2;
+  // the compressed block of the binary format is preceded by its int length
+  private final static int MAX_DEFLATE_BYTES = Integer.MAX_VALUE - (1 << 20);
+
+  private int version = TEXT_VERSION;
+
+  private Format format = Format.TEXT;
 
   /*
    * Holds a note where the associated ordering information is located.
@@ -81,8 +153,17 @@ public class HashForest<T extends HashValue> implements TextSerializable {
    */
   private Date firstSerializedDateTime = null;
 
-  private List<T> leafs = new ArrayList<T>();
-  private List<T[]> trees = new ArrayList<T[]>();
+  /*
+   * The trees are stored packed, hash value objects are only created when
+   * they are requested, see getLeafs(), getRoots() and getTrees().
+   */
+  private List<PackedTree> trees = new ArrayList<PackedTree>();
+
+  /*
+   * Index over the stored nodes, created when it's needed the first time
+   * and dropped when the trees are modified.
+   */
+  private NodeIndex nodeIndex = null;
 
   // needed for HashForests in root mode
   private int leafsCount = 0;
@@ -90,21 +171,92 @@ public class HashForest<T extends HashValue> implements TextSerializable {
 
   /*
    * Flag that denotes a modified full forest, i.e. this must be set true if
-   * new leafs are added and is checked when trees are built.
+   * new leafs are added and is checked when the forest is serialized.
    */
   private boolean isDirty = false;
 
   private Mode mode = Mode.FULL;  // full is the default mode
 
-  private void checkIsDirty() {
-    if ((isDirty || trees.isEmpty()) && mode.equals(Mode.FULL)) {
-      trees = createForest(leafs);
-      leafsCount = leafs.size();
-      treesCount = trees.size();
-      if (isDirty) {
-        isDirty = false;
-      }
+  /*
+   * Number of levels below the roots that are stored in PARTIAL mode.
+   */
+  private int depth = 0;
+
+  /*
+   * Algorithm of the leafs and inner nodes, set from the integrity
+   * information when it is read.
+   */
+  private HashAlgorithm algorithm = HashAlgorithm.DEFAULT;
+
+  /*
+   * Flag that denotes that trees which are built at once are hashed in
+   * parallel on the common ForkJoinPool.
+   */
+  private boolean isParallel = false;
+
+  /*
+   * Type of the hash values handed out by this forest, it must be able to
+   * hold the values of the algorithm that is read.
+   */
+  private Class<? extends HashValue> valueType = SHA512HashValue.class;
+
+  public HashForest() {
+  }
+
+  /**
+   * Creates an empty hash forest in FULL mode whose hash values are of the
+   * given type. Integrity information of any algorithm can be read into a
+   * forest of {@link DigestHashValue}s, whereas a forest created by the
+   * other constructors without an algorithm holds {@link SHA512HashValue}s
+   * and only accepts the default algorithm.
+   * @param valueType type of the hash values
+   */
+  public HashForest(Class<T> valueType) {
+    this.valueType = valueType;
+  }
+
+  /**
+   * Creates an empty hash forest in the given mode. A forest created in
+   * ROOTS mode doesn't store leafs or inner nodes at all, just the roots of
+   * the trees built so far, i.e. it needs O(log n) memory for n leafs.
+   * @param mode hashforest mode
+   */
+  public HashForest(Mode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Creates an empty hash forest in the given mode. In PARTIAL mode each
+   * tree stores its root and all inner nodes down to the given depth below
+   * the root, i.e. at most 2^(depth+1)-1 nodes per tree. This allows to
+   * narrow a failed validation down to subtrees, see
+   * {@link #findModifiedLeafs(HashForest)}. The depth is ignored in the
+   * other modes.
+   * @param mode hashforest mode
+   * @param depth number of stored levels below the roots in PARTIAL mode
+   */
+  public HashForest(Mode mode, int depth) {
+    if (depth < 0) {
+      throw new IllegalArgumentException("Depth must not be negative: " + depth);
     }
+    this.mode = mode;
+    this.depth = mode.equals(Mode.PARTIAL) ? depth : 0;
+  }
+
+  /**
+   * Creates an empty hash forest like {@link #HashForest(Mode, int)} whose
+   * nodes are computed with the given algorithm. The hash values passed to
+   * {@link #update(HashValue)} must be computed with the same algorithm, the
+   * hash values returned by this forest are {@link DigestHashValue}s,
+   * {@link SHA512HashValue}s for the default algorithm.
+   * @param mode hashforest mode
+   * @param depth number of stored levels below the roots in PARTIAL mode
+   * @param algorithm hash algorithm of the leafs and inner nodes
+   */
+  public HashForest(Mode mode, int depth, HashAlgorithm algorithm) {
+    this(mode, depth);
+    this.algorithm = algorithm;
+    this.valueType = algorithm.getValueType();
   }
 
   /**
@@ -112,7 +264,56 @@ public class HashForest<T extends HashValue> implements TextSerializable {
    * @return true if forest is empty, otherwise false.
    */
   public boolean isEmpty() {
-    return leafs.isEmpty();
+    return leafsCount == 0;
+  }
+
+  /*
+   * Returns the digest used to build trees, it is confined to the calling
+   * thread.
+   */
+  private MessageDigest getDigest() {
+    return algorithm.getDigest();
+  }
+
+  private int getDigestLength() {
+    return algorithm.getDigestLength();
+  }
+
+  /**
+   * Returns the algorithm the nodes of this forest are computed with, see
+   * {@link HashAlgorithm#DEFAULT}.
+   * @return hash algorithm
+   */
+  public HashAlgorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  /*
+   * Rejects hash values of another algorithm than the one of this forest.
+   */
+  private void checkHashValue(T hashValue) {
+    if (hashValue instanceof DigestHashValue
+        ? ((DigestHashValue) hashValue).getAlgorithm() != algorithm
+        : hashValue.bytes.length != getDigestLength()) {
+      throw new IllegalArgumentException("Hash value doesn't match the algorithm " + algorithm + "!");
+    }
+  }
+
+  /*
+   * Returns the depth down to which the nodes of the trees are stored.
+   */
+  private int getStoredDepth() {
+    if (mode.equals(Mode.FULL)) {
+      return Integer.MAX_VALUE;
+    } else if (mode.equals(Mode.PARTIAL)) {
+      return depth;
+    }
+    return 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T createHashValue(byte[] bytes) {
+    return (T) algorithm.wrap(bytes);
   }
 
   private int[] computeLeafsPerTree(int leafsCount) {
@@ -134,49 +335,184 @@ public class HashForest<T extends HashValue> implements TextSerializable {
     return treeSizes;
   }
 
-  @SuppressWarnings("unchecked")
-  private T[] createTree(List<T> leafs) {
-    // a complete tree with n leafes has exact 2*n - 1 nodes
-    int treeSize = 2 * leafs.size() - 1;
-    HashValue[] tree = new HashValue[treeSize];
-    for (int treeIdx = treeSize - 1, leafIdx = leafs.size() - 1; leafIdx >= 0; --treeIdx, --leafIdx) {
-      tree[treeIdx] = leafs.get(leafIdx);
-    }
-    // in the array-based (0-based index) representation of a binary tree a
-    // parent at index n has the children at 2*n+1 (left) and 2*n+2 (right)
-    for (int treeIdx = treeSize - leafs.size() - 1; treeIdx >= 0; --treeIdx) {
-      tree[treeIdx] = tree[2*treeIdx+1].concatenate(tree[2*treeIdx+2]);
+  /*
+   * Reads the stored digests of all trees in the order of the serialization:
+   * the roots in ROOTS mode, the nodes of each tree in level order in
+   * PARTIAL mode and the leafs in FULL mode. The inner nodes of FULL trees
+   * are computed by buildTrees().
+   */
+  private List<PackedTree> readTrees(PackedTree.DigestReader reader) throws IOException, InvalidInputException {
+    int digestLength = getDigestLength();
+    int[] leafsPerTree = computeLeafsPerTree(leafsCount);
+    List<PackedTree> forest = new ArrayList<PackedTree>();
+    if (mode.equals(Mode.ROOTS)) {
+      for (int i = 0; i < treesCount; ++i) {
+        int treeLeafs = i < leafsPerTree.length ? leafsPerTree[i] : 0;
+        PackedTree tree = new PackedTree(treeLeafs, digestLength, 1);
+        tree.readNodes(0, 1, reader);
+        forest.add(tree);
+      }
+    } else if (mode.equals(Mode.PARTIAL)) {
+      checkTreesCount(leafsPerTree);
+      for (int treeLeafs : leafsPerTree) {
+        PackedTree tree = new PackedTree(treeLeafs, digestLength, PackedTree.nodeCount(treeLeafs, depth));
+        tree.readNodes(0, tree.nodeCount(), reader);
+        forest.add(tree);
+      }
+    } else {
+      for (int treeLeafs : leafsPerTree) {
+        PackedTree tree = PackedTree.allocate(treeLeafs, digestLength);
+        tree.readNodes(tree.leafNode(0), treeLeafs, reader);
+        forest.add(tree);
+      }
     }
-    return (T[]) tree;
+    return forest;
   }
 
-  private List<T[]> createForest(List<T> leafs) {
-    int[] leafesPerTree = computeLeafsPerTree(leafs.size());
-    List<T[]> forest = new ArrayList<T[]>();
-    int startIdx = 0;
-    for (int leafSize : leafesPerTree) {
-      forest.add(createTree(leafs.subList(startIdx, startIdx + leafSize)));
-      startIdx += leafSize;
+  /*
+   * Computes the inner nodes of trees whose leafs have been read.
+   */
+  private void buildTrees(List<PackedTree> forest) {
+    if (!isParallel) {
+      MessageDigest md = getDigest();
+      for (PackedTree tree : forest) {
+        tree.hashSubtree(0, tree.leafCount, md);
+      }
+      return;
     }
-    return forest;
+    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (PackedTree tree : forest) {
+      tasks.add(tree.buildTask(algorithm));
+    }
+    ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 8129587412931186395L;
+
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+  }
+
+  /**
+   * Sets whether trees that are built at once (e.g. when a full forest is
+   * read) are hashed in parallel on the common ForkJoinPool. The trees and
+   * disjoint subtrees are hashed independently, the result is identical to
+   * the sequential build.
+   * @param parallel true to build trees in parallel
+   */
+  public void setParallel(boolean parallel) {
+    this.isParallel = parallel;
+  }
+
+  public boolean isParallel() {
+    return isParallel;
+  }
+
+  /**
+   * Sets the format used by {@link #writeTo(OutputStream)}. A forest that
+   * has been read keeps the format it was read in.
+   * @param format serialization format
+   */
+  public void setFormat(Format format) {
+    this.format = format;
+  }
+
+  public Format getFormat() {
+    return format;
   }
 
   /**
    * Update this forest with a new hash value.
+   *
+   * The trees are kept up to date like a binary counter: the new leaf forms
+   * a tree of its own which is merged with the last tree as long as both
+   * have the same size. This takes amortized O(1) hash operations per leaf.
+   *
+   * In ROOTS mode neither the leaf nor inner nodes are stored, only the
+   * roots of the trees. In PARTIAL mode only the nodes down to the depth of
+   * this forest are stored.
    * @param hashValue
+   * @throws IllegalArgumentException if the hash value was computed with
+   *         another algorithm than this forest
    */
   public void update(T hashValue) {
-    // TODO: suppress this if mode is ROOTS
-    leafs.add(hashValue);
+    checkHashValue(hashValue);
+    if (leafsCount == Integer.MAX_VALUE) {
+      throw new IllegalStateException("Hash forest exceeds the maximum of " + Integer.MAX_VALUE + " leafs!");
+    }
+    int storedDepth = getStoredDepth();
+    PackedTree tree = PackedTree.leaf(hashValue.bytes);
+    while (!trees.isEmpty() && trees.get(trees.size() - 1).leafCount == tree.leafCount) {
+      tree = PackedTree.merge(trees.remove(trees.size() - 1), tree, getDigest(), storedDepth);
+    }
+    trees.add(tree);
+    ++leafsCount;
+    treesCount = trees.size();
+    nodeIndex = null;
     isDirty = true;
   }
 
   /**
-   * Returns a list of the leafs (i.e. hash values of data items).
+   * Replaces the leaf at the given index, e.g. if a data item was changed on
+   * purpose. Only the nodes on the path from the leaf to its root are
+   * recomputed, i.e. this takes O(log n) hash operations. Only supported in
+   * FULL mode.
+   * @param index index of the leaf
+   * @param hashValue new hash value of the data item
+   * @throws IllegalStateException if this forest isn't in FULL mode
+   */
+  public void replaceLeaf(int index, T hashValue) {
+    if (!mode.equals(Mode.FULL)) {
+      throw new IllegalStateException("Leafs can only be replaced in FULL mode!");
+    }
+    if (index < 0 || index >= leafsCount) {
+      throw new IndexOutOfBoundsException("Leaf index: " + index);
+    }
+    checkHashValue(hashValue);
+    int firstLeaf = 0;
+    for (PackedTree tree : trees) {
+      if (index < firstLeaf + tree.leafCount) {
+        tree.replaceLeaf(index - firstLeaf, hashValue.bytes, getDigest());
+        break;
+      }
+      firstLeaf += tree.leafCount;
+    }
+    nodeIndex = null;
+    isDirty = true;
+  }
+
+  /**
+   * Returns a list of the leafs (i.e. hash values of data items). The list
+   * is empty if this forest is in ROOTS mode. The hash values are created
+   * when they are accessed.
    * @return List of leafs.
    */
   public List<T> getLeafs() {
-    return Collections.unmodifiableList(leafs);
+    if (!mode.equals(Mode.FULL)) {
+      return Collections.emptyList();
+    }
+    return new AbstractList<T>() {
+      @Override
+      public T get(int index) {
+        if (index < 0 || index >= leafsCount) {
+          throw new IndexOutOfBoundsException("Leaf index: " + index);
+        }
+        int firstLeaf = 0;
+        for (PackedTree tree : trees) {
+          if (index < firstLeaf + tree.leafCount) {
+            return createHashValue(tree.getNode(tree.leafNode(index - firstLeaf)));
+          }
+          firstLeaf += tree.leafCount;
+        }
+        throw new IndexOutOfBoundsException("Leaf index: " + index);
+      }
+
+      @Override
+      public int size() {
+        return leafsCount;
+      }
+    };
   }
 
   /**
@@ -184,10 +520,9 @@ public class HashForest<T extends HashValue> implements TextSerializable {
    * @return List of roots.
    */
   public List<T> getRoots() {
-    checkIsDirty();
     List<T> roots = new ArrayList<T>();
-    for (T[] tree : trees) {
-      roots.add(tree[0]);
+    for (PackedTree tree : trees) {
+      roots.add(createHashValue(tree.getRoot()));
     }
     return roots;
   }
@@ -199,40 +534,97 @@ public class HashForest<T extends HashValue> implements TextSerializable {
    * (left) and 2*n+2 (right)).
    * @return List of trees represented as lists.
    */
+  @SuppressWarnings("unchecked")
   public List<T[]> getTrees() {
-    checkIsDirty();
     List<T[]> treesNew = new ArrayList<T[]>();
-    for (T[] tree : trees) {
-      treesNew.add(tree.clone());
+    for (PackedTree tree : trees) {
+      HashValue[] nodes = new HashValue[tree.nodeCount()];
+      for (int index = 0; index < nodes.length; ++index) {
+        nodes[index] = createHashValue(tree.getNode(index));
+      }
+      treesNew.add((T[]) nodes);
     }
     return treesNew;
   }
 
 
+  int getTreeCount() {
+    return trees.size();
+  }
+
+  int getTreeLeafCount(int index) {
+    return trees.get(index).leafCount;
+  }
+
+  /*
+   * Returns true iff the roots of the trees at the given index are equal.
+   */
+  boolean rootEquals(int index, HashForest<T> other) {
+    return trees.get(index).rootEquals(other.trees.get(index));
+  }
+
   /**
    * Compares this HashForest object with the other one and returns true iff
-   * the forests are equal.
+   * the forests are equal. Forests of different algorithms are never equal.
    * @param other The HashForest to compare this to.
    * @return true if the forests are equal, otherwise false.
    */
   public boolean validate(HashForest<T> other) {
-    checkIsDirty();
-    List<T> roots = getRoots();
-    List<T> otherRoots = other.getRoots();
-    return roots.equals(otherRoots);
+    if (algorithm != other.algorithm || trees.size() != other.trees.size()) {
+      return false;
+    }
+    for (int index = 0; index < trees.size(); ++index) {
+      if (!trees.get(index).rootEquals(other.trees.get(index))) {
+        return false;
+      }
+    }
+    return true;
   }
 
-
-
-  private boolean contains(T[] haystack, T needle) {
-    boolean result = false;
-    for (T node : haystack) {
-      if (needle.equals(node)) {
-        result = true;
-        break;
+  /**
+   * Compares the trees of this forest with the trees of the other forest
+   * and returns the indices of all leafs that may differ. Starting at the
+   * roots, differing nodes are followed down as long as both trees store
+   * the child nodes. All leafs below a differing node whose children aren't
+   * stored are returned, i.e. the result is exact if both forests are in
+   * FULL mode and narrowed down to subtrees with n/2^depth leafs in PARTIAL
+   * mode. If both forests have the same number of leafs, the result is
+   * empty iff validate(other) is true. All leafs are returned if the forests
+   * use different algorithms.
+   * @param other The HashForest to compare this to.
+   * @return indices of the leafs of this forest that may be modified
+   */
+  public BitSet findModifiedLeafs(HashForest<T> other) {
+    BitSet modified = new BitSet();
+    if (algorithm != other.algorithm) {
+      modified.set(0, leafsCount);
+      return modified;
+    }
+    int firstLeaf = 0;
+    for (int index = 0; index < trees.size(); ++index) {
+      PackedTree tree = trees.get(index);
+      if (index < other.trees.size() && other.trees.get(index).leafCount == tree.leafCount) {
+        findModifiedLeafs(tree, other.trees.get(index), 0, firstLeaf, modified);
+      } else {
+        modified.set(firstLeaf, firstLeaf + tree.leafCount);
       }
+      firstLeaf += tree.leafCount;
+    }
+    return modified;
+  }
+
+  private void findModifiedLeafs(PackedTree tree, PackedTree other, int node, int firstLeaf, BitSet modified) {
+    if (tree.nodeEquals(node, other)) {
+      return;
+    }
+    long leftChild = 2L * node + 1;
+    if (leftChild + 1 < Math.min(tree.nodeCount(), other.nodeCount())) {
+      findModifiedLeafs(tree, other, (int) leftChild, firstLeaf, modified);
+      findModifiedLeafs(tree, other, (int) leftChild + 1, firstLeaf, modified);
+    } else {
+      int first = firstLeaf + tree.firstLeafBelow(node);
+      modified.set(first, first + tree.leafCountBelow(node));
     }
-    return result;
   }
 
   /**
@@ -246,53 +638,104 @@ public class HashForest<T extends HashValue> implements TextSerializable {
    * HashForest, othrewise false
    */
   public boolean contains(HashForest<T> other) {
-    checkIsDirty();
     if (validate(other)) {
       return true;
     }
+    if (algorithm != other.algorithm) {
+      return false;
+    }
 
-    List<T[]> trees = getTrees();
-    List<T> otherRoots = other.getRoots();
-
-    boolean result = true;
-    for (T root : otherRoots) {
-      boolean found = false;
-      for (T[] tree : trees) {
-        if (contains(tree, root)) {
-          found = true;
-          break;
-        }
-      }
-      result &= found;
-      if (!result) {
-        break;
+    NodeIndex index = getNodeIndex();
+    for (PackedTree otherTree : other.trees) {
+      if (!index.contains(otherTree.segment(0), 0)) {
+        return false;
       }
     }
+    return true;
+  }
 
-    return result;
+  /**
+   * Returns true iff one of the stored nodes (leafs, inner nodes or roots)
+   * equals the given hash value. The nodes are looked up in an index that
+   * is built on the first call and kept until this forest is modified.
+   * @param hashValue hash value to look up
+   * @return true if a node equals the hash value
+   */
+  public boolean containsNode(T hashValue) {
+    if (hashValue instanceof DigestHashValue && ((DigestHashValue) hashValue).getAlgorithm() != algorithm) {
+      return false;
+    }
+    return hashValue.bytes.length == getDigestLength() && getNodeIndex().contains(hashValue.bytes, 0);
+  }
+
+  private NodeIndex getNodeIndex() {
+    if (nodeIndex == null) {
+      nodeIndex = new NodeIndex(trees);
+    }
+    return nodeIndex;
   }
 
   /**
    * Set mode to "roots", i.e. just the roots of all trees are stored.
    * <strong>Note that this setting cannot be reversed</strong>. By keeping
    * only the roots information a <strong>forest cannot be extended in the
-   * future</strong>, just validate() is supported.
+   * future</strong>, just validate() is supported. Leafs and inner nodes
+   * are discarded.
    */
   public void pruneForest() {
-    checkIsDirty();  // recreate trees one last time
     this.mode = Mode.ROOTS;
+    this.depth = 0;
+    List<PackedTree> roots = new ArrayList<PackedTree>();
+    for (PackedTree tree : trees) {
+      roots.add(tree.prune());
+    }
+    trees = roots;
+    nodeIndex = null;
+  }
+
+  /**
+   * Set mode to "partial", i.e. only the nodes down to the given depth below
+   * the roots are stored. Like {@link #pruneForest()} this cannot be
+   * reversed. A forest that already stores fewer levels is not changed.
+   * @param depth number of levels below the roots to keep
+   */
+  public void pruneForest(int depth) {
+    if (depth < 0) {
+      throw new IllegalArgumentException("Depth must not be negative: " + depth);
+    }
+    if (depth >= getStoredDepth()) {
+      return;
+    }
+    this.mode = Mode.PARTIAL;
+    this.depth = depth;
+    List<PackedTree> prunedTrees = new ArrayList<PackedTree>();
+    for (PackedTree tree : trees) {
+      prunedTrees.add(tree.prune(depth));
+    }
+    trees = prunedTrees;
+    nodeIndex = null;
   }
 
   /**
    * Returns the mode of this hash forest object. Mode.FULL denotes that this forest
    * can be extended, Mode.ROOTS denotes that this forest can only be used
-   * to validate the data.
+   * to validate the data. Mode.PARTIAL denotes that the nodes down to
+   * {@link #getDepth()} are stored additionally to the roots.
    * @return hashforest mode
    */
   public Mode getMode() {
     return mode;
   }
 
+  /**
+   * Returns the number of levels below the roots that are stored in
+   * PARTIAL mode, 0 in the other modes.
+   * @return depth of the stored nodes
+   */
+  public int getDepth() {
+    return depth;
+  }
+
   /**
    * Set where the ordering information for this hashforest is stored. Usually
    * this would be a file name e.g. the default file name given in
@@ -347,28 +790,57 @@ public class HashForest<T extends HashValue> implements TextSerializable {
     w.write(Const.NEWLINE);
   }
 
-  @Override
-  public void writeTo(Writer w) throws IOException {
-
-    /*
-     * Compute a new datetime string as serialization timestamp if either
-     * there was none computed before or this hash forest object has been
-     * extended. If this hash forest is in ROOTS mode or in FULL mode but
-     * has not been extended, reuse the stored datetime.
-     */
-    Date date = null;
+  /*
+   * Compute a new datetime as serialization timestamp if either there was
+   * none computed before or this hash forest object has been extended. If
+   * this hash forest is in ROOTS mode or in FULL mode but has not been
+   * extended, reuse the stored datetime.
+   */
+  private Date getSerializationDateTime() {
     if ((firstSerializedDateTime == null) || (mode.equals(Mode.FULL) && isDirty)) {
-      date = new Date();
+      return new Date();
     } else {
-      date = firstSerializedDateTime;
+      return firstSerializedDateTime;
     }
-    String dateFormattet = DateUtil.date2String(date);
+  }
+
+  private static MessageDigest getChecksumDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-512");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("Could not instatiate checksum provider");
+    }
+  }
 
-    /*
-    * TODO: This is not necessary if the hash forest is in FULL mode.
-    * It's just the lazy option to provide a trees count.
-    */
-    checkIsDirty();  // compute trees
+  /*
+   * Writes the line for the digest at the given offset, the line and the hex
+   * digest are built in the given buffers. The field must be a single ASCII
+   * character.
+   */
+  private void writeCheckedDigest(
+    Writer w,
+    ChecksumUtil cp,
+    byte[] field,
+    byte[] digests,
+    int offset,
+    char[] line,
+    byte[] hexDigest
+  ) throws IOException {
+    HexUtil.encode(digests, offset, getDigestLength(), hexDigest, 0);
+    cp.update(field);
+    cp.update(hexDigest);
+    line[0] = (char) field[0];
+    line[1] = Const.SEPARATOR.charAt(0);
+    HexUtil.encode(digests, offset, getDigestLength(), line, 2);
+    line[line.length - 1] = Const.NEWLINE.charAt(0);
+    w.write(line);
+  }
+
+  @Override
+  public void writeTo(Writer w) throws IOException {
+    Date date = getSerializationDateTime();
+    String dateFormattet = DateUtil.date2String(date);
+    version = TEXT_VERSION;
 
     ChecksumUtil cp = null;
     try {
@@ -377,20 +849,37 @@ public class HashForest<T extends HashValue> implements TextSerializable {
       throw new IOException("Could not instatiate checksum provider");
     }
 
-    writeChecked(w, cp, Const.VERSION, Integer.toString(version));
+    writeChecked(w, cp, Const.VERSION, Integer.toString(TEXT_VERSION));
     writeChecked(w, cp, Const.DATE, dateFormattet);
     writeChecked(w, cp, Const.LEAFS, Integer.toString(leafsCount));
     writeChecked(w, cp, Const.TREES, Integer.toString(treesCount));
     writeChecked(w, cp, Const.ORDER, orderingInformationLocation);
     writeChecked(w, cp, Const.MODE, mode.toString());
+    if (mode.equals(Mode.PARTIAL)) {
+      writeChecked(w, cp, Const.DEPTH, Integer.toString(depth));
+    }
+    // omitted for the default algorithm, so the output stays readable for older versions
+    if (algorithm != HashAlgorithm.DEFAULT) {
+      writeChecked(w, cp, Const.ALGORITHM, algorithm.getName());
+    }
 
+    char[] line = new char[2 * getDigestLength() + 3];
+    byte[] hexDigest = new byte[2 * getDigestLength()];
     if (mode.equals(Mode.ROOTS)) {
-      for (T[] tree : trees) {
-        writeChecked(w, cp, Const.ROOT, tree[0].getHexString());
+      for (PackedTree tree : trees) {
+        writeCheckedDigest(w, cp, ROOT_FIELD, tree.segment(0), 0, line, hexDigest);
+      }
+    } else if (mode.equals(Mode.PARTIAL)) {
+      for (PackedTree tree : trees) {
+        for (int node = 0; node < tree.nodeCount(); ++node) {
+          writeCheckedDigest(w, cp, NODE_FIELD, tree.segment(node), tree.offset(node), line, hexDigest);
+        }
       }
     } else {
-      for (T hashValue : leafs) {
-        writeChecked(w, cp, Const.LEAF, hashValue.getHexString());
+      for (PackedTree tree : trees) {
+        for (int node = tree.leafNode(0); node < tree.nodeCount(); ++node) {
+          writeCheckedDigest(w, cp, LEAF_FIELD, tree.segment(node), tree.offset(node), line, hexDigest);
+        }
       }
     }
 
@@ -401,28 +890,192 @@ public class HashForest<T extends HashValue> implements TextSerializable {
     w.write(Const.NEWLINE);
 
     firstSerializedDateTime = date;
+    isDirty = false;
   }
 
+  /**
+   * Writes this object to os in the format set by
+   * {@link #setFormat(Format)}. The stream is flushed but not closed.
+   *
+   * The binary format consists of the magic bytes, the header fields, the
+   * raw digests (the leafs in FULL mode, the roots in ROOTS mode) and the
+   * SHA-512 checksum of all preceding bytes. The digests may be stored as
+   * one deflate compressed block preceded by its length. The algorithm is
+   * stored as header field if it isn't the default algorithm.
+   * @param os OutputStream
+   */
+  @Override
+  public void writeTo(OutputStream os) throws IOException {
+    if (format.equals(Format.TEXT)) {
+      Writer w = new BufferedWriter(new OutputStreamWriter(os, CHARSET));
+      writeTo(w);
+      w.flush();
+      return;
+    }
 
-  private String readChecked(ChecksumUtil cp, String line, String expectedField) throws InvalidInputException {
-    String[] parts = line.split(Const.SEPARATOR);
-    if (parts[0].equals(expectedField)) {
-      updateChecksum(cp, parts[0], parts[1]);
-      return parts[1];
+    Date date = getSerializationDateTime();
+    boolean deflate = format.equals(Format.DEFLATE);
+    boolean writeAlgorithm = algorithm != HashAlgorithm.DEFAULT;
+    MessageDigest checksumDigest = getChecksumDigest();
+    DigestOutputStream digestStream = new DigestOutputStream(new BufferedOutputStream(os), checksumDigest);
+    DataOutputStream out = new DataOutputStream(digestStream);
+
+    out.write(BINARY_MAGIC);
+    out.writeInt(BINARY_VERSION);
+    out.writeByte((deflate ? FLAG_DEFLATE : 0) | (writeAlgorithm ? FLAG_ALGORITHM : 0));
+    out.writeUTF(DateUtil.date2String(date));
+    out.writeInt(leafsCount);
+    out.writeInt(treesCount);
+    out.writeUTF(orderingInformationLocation);
+    out.writeUTF(mode.toString());
+    if (mode.equals(Mode.PARTIAL)) {
+      out.writeInt(depth);
+    }
+    if (writeAlgorithm) {
+      out.writeUTF(algorithm.getName());
+    }
+    if (deflate) {
+      // the compressed block is buffered to write its length first, random digests hardly compress
+      long digestBytes = 0;
+      for (PackedTree tree : trees) {
+        digestBytes += (long) (mode.equals(Mode.FULL) ? tree.leafCount : tree.nodeCount()) * getDigestLength();
+      }
+      if (digestBytes > MAX_DEFLATE_BYTES) {
+        throw new IOException("Too many digests for the deflate format, use the binary format!");
+      }
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      try (OutputStream deflater = new DeflaterOutputStream(block)) {
+        writeDigests(deflater);
+      }
+      out.writeInt(block.size());
+      block.writeTo(out);
     } else {
+      writeDigests(out);
+    }
+    digestStream.on(false);
+    out.write(checksumDigest.digest());
+    out.flush();
+
+    version = BINARY_VERSION;
+    firstSerializedDateTime = date;
+    isDirty = false;
+  }
+
+  /*
+   * Writes the leafs (FULL mode) or the stored nodes in level order (ROOTS
+   * and PARTIAL mode) as raw digests.
+   */
+  private void writeDigests(OutputStream out) throws IOException {
+    for (PackedTree tree : trees) {
+      if (!mode.equals(Mode.FULL)) {
+        tree.writeNodes(0, tree.nodeCount(), out);
+      } else {
+        tree.writeNodes(tree.leafNode(0), tree.leafCount, out);
+      }
+    }
+  }
+
+
+  private static final byte[] VERSION_FIELD = Const.VERSION.getBytes(CHARSET);
+  private static final byte[] DATE_FIELD = Const.DATE.getBytes(CHARSET);
+  private static final byte[] LEAFS_FIELD = Const.LEAFS.getBytes(CHARSET);
+  private static final byte[] TREES_FIELD = Const.TREES.getBytes(CHARSET);
+  private static final byte[] ORDER_FIELD = Const.ORDER.getBytes(CHARSET);
+  private static final byte[] MODE_FIELD = Const.MODE.getBytes(CHARSET);
+  private static final byte[] ROOT_FIELD = Const.ROOT.getBytes(CHARSET);
+  private static final byte[] LEAF_FIELD = Const.LEAF.getBytes(CHARSET);
+  private static final byte[] DEPTH_FIELD = Const.DEPTH.getBytes(CHARSET);
+  private static final byte[] ALGORITHM_FIELD = Const.ALGORITHM.getBytes(CHARSET);
+  private static final byte[] NODE_FIELD = Const.NODE.getBytes(CHARSET);
+  private static final byte[] CHECKSUM_FIELD = Const.CHECKSUM.getBytes(CHARSET);
+
+  private int checkCount(int count) throws InvalidInputException {
+    if (count < 0) {
       throw new InvalidInputException(
-        "Expected " + expectedField + ", got " + parts[0],
+        "Not a valid count: " + count,
         InvalidInputException.ErrorType.SCHEMA_INVALID
       );
     }
+    return count;
   }
 
+  private int parseCount(String value) throws InvalidInputException {
+    try {
+      return checkCount(Integer.parseInt(value));
+    } catch (NumberFormatException e) {
+      throw new InvalidInputException(
+        "Not a valid count: " + value,
+        InvalidInputException.ErrorType.SCHEMA_INVALID
+      );
+    }
+  }
+
+  private HashAlgorithm parseAlgorithm(String value) throws InvalidInputException {
+    HashAlgorithm algorithm;
+    try {
+      algorithm = HashAlgorithm.fromString(value);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidInputException(
+        "Not a supported hash algorithm: " + value,
+        InvalidInputException.ErrorType.SCHEMA_INVALID
+      );
+    }
+    // e.g. a HashForest<SHA512HashValue> can't hand out SHA-256 values
+    if (!valueType.isAssignableFrom(algorithm.getValueType())) {
+      throw new InvalidInputException(
+        "Hash algorithm " + algorithm + " requires a forest of DigestHashValues!",
+        InvalidInputException.ErrorType.SCHEMA_INVALID
+      );
+    }
+    return algorithm;
+  }
+
+  private void checkTreesCount(int[] leafsPerTree) throws InvalidInputException {
+    if (treesCount != leafsPerTree.length) {
+      throw new InvalidInputException(
+        "Number of trees doesn't match the number of leafs!",
+        InvalidInputException.ErrorType.SCHEMA_INVALID
+      );
+    }
+  }
 
-  @SuppressWarnings("unchecked")
   @Override
   public void readFrom(Reader r) throws IOException, InvalidInputException {
-    leafs = new ArrayList<T>();
-    trees = new ArrayList<T[]>();
+    readText(new ReaderInputStream(r, CHARSET));
+  }
+
+  /**
+   * Reads this object from is. The format (text or binary) is detected
+   * automatically and kept for subsequent calls of
+   * {@link #writeTo(OutputStream)}. The algorithm is taken from the integrity
+   * information, the hash values of a forest that doesn't use the default
+   * algorithm are {@link DigestHashValue}s, so such a forest must be created
+   * by {@link #HashForest(Class)} with DigestHashValue.class. Other forests
+   * reject these algorithms.
+   * @param is InputStream
+   * @throws InvalidInputException also if the hash values of the algorithm
+   *         don't fit the value type of this forest
+   */
+  @Override
+  public void readFrom(InputStream is) throws IOException, InvalidInputException {
+    InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+    in.mark(BINARY_MAGIC.length);
+    byte[] magic = in.readNBytes(BINARY_MAGIC.length);
+    in.reset();
+    if (Arrays.equals(magic, BINARY_MAGIC)) {
+      readBinary(in);
+    } else {
+      readText(in);
+    }
+  }
+
+  /*
+   * Reads the UTF-8 encoded text serialization. The input is parsed on byte
+   * level, leafs are decoded directly into the packed tree storage.
+   */
+  private void readText(InputStream is) throws IOException, InvalidInputException {
+    trees = new ArrayList<PackedTree>();
+    nodeIndex = null;
 
     ChecksumUtil cp = null;
     try {
@@ -430,13 +1083,11 @@ public class HashForest<T extends HashValue> implements TextSerializable {
     } catch (NoSuchAlgorithmException e) {
       throw new IOException("Could not instatiate checksum provider!");
     }
-    BufferedReader br = new BufferedReader(r);
-    String line = br.readLine();
-    String value = readChecked(cp, line, Const.VERSION);
-    version = Integer.parseInt(value);
+    IntegrityInformationParser parser = new IntegrityInformationParser(is, cp);
+    String value = parser.readValue(VERSION_FIELD);
+    version = parseCount(value);
 
-    line = br.readLine();
-    value = readChecked(cp, line, Const.DATE);
+    value = parser.readValue(DATE_FIELD);
     try {
       firstSerializedDateTime = DateUtil.string2Date(value);
     } catch (ParseException e1) {
@@ -444,54 +1095,144 @@ public class HashForest<T extends HashValue> implements TextSerializable {
         InvalidInputException.ErrorType.SCHEMA_INVALID);
     }
 
-    line = br.readLine();
-    value = readChecked(cp, line, Const.LEAFS);
-    leafsCount = Integer.parseInt(value);
+    leafsCount = parseCount(parser.readValue(LEAFS_FIELD));
+    treesCount = parseCount(parser.readValue(TREES_FIELD));
+    orderingInformationLocation = parser.readValue(ORDER_FIELD);
+    mode = Mode.fromString(parser.readValue(MODE_FIELD));
+    depth = mode.equals(Mode.PARTIAL) ? parseCount(parser.readValue(DEPTH_FIELD)) : 0;
+    algorithm = HashAlgorithm.DEFAULT;
+    if (parser.nextFieldIs(ALGORITHM_FIELD)) {
+      algorithm = parseAlgorithm(parser.readValue(ALGORITHM_FIELD));
+    }
+    int digestLength = getDigestLength();
 
-    line = br.readLine();
-    value = readChecked(cp, line, Const.TREES);
-    treesCount = Integer.parseInt(value);
+    byte[] field = mode.equals(Mode.ROOTS) ? ROOT_FIELD : mode.equals(Mode.PARTIAL) ? NODE_FIELD : LEAF_FIELD;
+    trees = readTrees((digests, offset, length) -> {
+      for (int from = offset; from < offset + length; from += digestLength) {
+        parser.readDigest(field, digests, from, digestLength);
+      }
+    });
 
-    line = br.readLine();
-    value = readChecked(cp, line, Const.ORDER);
-    orderingInformationLocation = value;
+    String computedChecksum = cp.get();
+    if (!parser.readUncheckedValue(CHECKSUM_FIELD).equals(computedChecksum)) {
+      throw new InvalidInputException(
+        "Invalid checksum for integrity information!",
+        InvalidInputException.ErrorType.CHECKSUM_INVALID
+      );
+    }
+    checkTreesCount(computeLeafsPerTree(leafsCount));
+    if (mode.equals(Mode.FULL)) {
+      buildTrees(trees);
+    }
 
-    line = br.readLine();
-    value = readChecked(cp, line, Const.MODE);
-    mode = Mode.fromString(value);
+    format = Format.TEXT;
+    // isDirty = true;
+    isDirty = false;
+  }
 
+  /*
+   * Reads the binary serialization, see writeTo(OutputStream). The checksum
+   * is verified before the trees are built and before a compressed block is
+   * inflated.
+   */
+  private void readBinary(InputStream is) throws IOException, InvalidInputException {
+    MessageDigest checksumDigest = getChecksumDigest();
+    DigestInputStream digestStream = new DigestInputStream(is, checksumDigest);
+    DataInputStream in = new DataInputStream(digestStream);
+    boolean deflate = false;
+    byte[] block = null;
     try {
-      if (mode.equals(Mode.ROOTS)) {
-        for (int i = 0; i < treesCount; ++i) {
-          line = br.readLine();
-          value = readChecked(cp, line, Const.ROOT);
-          HashValue hashValue = new SHA512HashValue(value);
-          HashValue[] tree = new HashValue[]{hashValue};
-          trees.add((T[]) tree);
-        }
-      } else if (mode.equals(Mode.FULL)) {
-        for (int i = 0; i < leafsCount; ++i) {
-          line = br.readLine();
-          value = readChecked(cp, line, Const.LEAF);
-          HashValue hashValue = new SHA512HashValue(value);
-          leafs.add((T) hashValue);
+      in.readFully(new byte[BINARY_MAGIC.length]);
+      int binaryVersion = in.readInt();
+      if (binaryVersion != BINARY_VERSION) {
+        throw new InvalidInputException(
+          "Unsupported version: " + binaryVersion,
+          InvalidInputException.ErrorType.SCHEMA_INVALID
+        );
+      }
+      int flags = in.readUnsignedByte();
+      if ((flags & ~(FLAG_DEFLATE | FLAG_ALGORITHM)) != 0) {
+        throw new InvalidInputException(
+          "Unknown flags: " + flags,
+          InvalidInputException.ErrorType.SCHEMA_INVALID
+        );
+      }
+      deflate = (flags & FLAG_DEFLATE) != 0;
+      try {
+        firstSerializedDateTime = DateUtil.string2Date(in.readUTF());
+      } catch (ParseException e1) {
+        throw new InvalidInputException("Date format invalid.",
+          InvalidInputException.ErrorType.SCHEMA_INVALID);
+      }
+      leafsCount = checkCount(in.readInt());
+      treesCount = checkCount(in.readInt());
+      orderingInformationLocation = in.readUTF();
+      mode = Mode.fromString(in.readUTF());
+      depth = mode.equals(Mode.PARTIAL) ? checkCount(in.readInt()) : 0;
+      algorithm = (flags & FLAG_ALGORITHM) != 0 ? parseAlgorithm(in.readUTF()) : HashAlgorithm.DEFAULT;
+
+      if (deflate) {
+        int blockLength = in.readInt();
+        if (blockLength < 0) {
+          throw new InvalidInputException(
+            "Invalid length of compressed block: " + blockLength,
+            InvalidInputException.ErrorType.SCHEMA_INVALID
+          );
         }
+        block = new byte[blockLength];
+        in.readFully(block);
+      } else {
+        trees = readTrees(in::readFully);
       }
-    } catch (NoSuchAlgorithmException e) {
-      throw new IOException("Could not instantiate message digest algorithm for SHA512!");
-    }
 
-    String computedChecksum = cp.get();
-    line = br.readLine();
-    String[] parts = line.split(Const.SEPARATOR);
-    if (!parts[0].equals(Const.CHECKSUM) || !parts[1].equals(computedChecksum)) {
+      digestStream.on(false);
+      byte[] checksum = new byte[checksumDigest.getDigestLength()];
+      in.readFully(checksum);
+      if (!MessageDigest.isEqual(checksum, checksumDigest.digest())) {
+        throw new InvalidInputException(
+          "Invalid checksum for integrity information!",
+          InvalidInputException.ErrorType.CHECKSUM_INVALID
+        );
+      }
+    } catch (EOFException e) {
       throw new InvalidInputException(
-        "Invalid checksum for integrity information!",
-        InvalidInputException.ErrorType.CHECKSUM_INVALID
+        "Unexpected end of integrity information.",
+        InvalidInputException.ErrorType.SCHEMA_INVALID
       );
     }
 
-    // isDirty = true;
+    if (block != null) {
+      try (InputStream inflater = new InflaterInputStream(new ByteArrayInputStream(block))) {
+        trees = readTrees((digests, offset, length) -> {
+          if (inflater.readNBytes(digests, offset, length) != length) {
+            throw new InvalidInputException(
+              "Compressed block doesn't match the number of digests!",
+              InvalidInputException.ErrorType.SCHEMA_INVALID
+            );
+          }
+        });
+        if (inflater.read() != -1) {
+          throw new InvalidInputException(
+            "Compressed block doesn't match the number of digests!",
+            InvalidInputException.ErrorType.SCHEMA_INVALID
+          );
+        }
+      } catch (ZipException e) {
+        throw new InvalidInputException(
+          "Compressed block is corrupt: " + e.getMessage(),
+          InvalidInputException.ErrorType.SCHEMA_INVALID
+        );
+      }
+    }
+
+    checkTreesCount(computeLeafsPerTree(leafsCount));
+    if (mode.equals(Mode.FULL)) {
+      buildTrees(trees);
+    }
+    nodeIndex = null;
+
+    version = BINARY_VERSION;
+    format = deflate ? Format.DEFLATE : Format.BINARY;
     isDirty = false;
   }
 
@@ -20,13 +20,16 @@
 package lath.integrity.hashforest;
 
 import java.security.InvalidParameterException;
-import java.security.MessageDigest;
 
-public abstract class HashValue {
+import lath.integrity.util.HexUtil;
 
-  MessageDigest md;
+/**
+ * Immutable hash value. Hash values don't hold any message digest, so they
+ * are cheap to create and can be shared between threads.
+ */
+public abstract class HashValue {
 
-  byte[] bytes; // hash value internally stored as byte array
+  final byte[] bytes; // hash value internally stored as byte array
 
   public HashValue(byte[] bytes) {
     this.bytes = bytes;
@@ -58,14 +61,24 @@ public abstract class HashValue {
    * @return the string the given byte[] represents
    *
    */
-  // cf.
-  // http://www.coderblog.de/producing-the-same-sha-512-hash-in-java-and-php/
   public static String bytes2hex(byte[] b) {
-    StringBuffer sb = new StringBuffer();
-    for (int i = 0; i < b.length; i++) {
-      sb.append(Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1));
-    }
-    return sb.toString();
+    return bytes2hex(b, 0, b.length);
+  }
+
+  /**
+   * Converts length bytes of the given byte[] starting at offset to a
+   * hexadecimal string representation.
+   *
+   * @param b
+   *            the byte[] to convert
+   * @param offset
+   *            index of the first byte to convert
+   * @param length
+   *            number of bytes to convert
+   * @return the string the given bytes represent
+   */
+  public static String bytes2hex(byte[] b, int offset, int length) {
+    return HexUtil.toHex(b, offset, length);
   }
 
   /**
@@ -82,7 +95,6 @@ public abstract class HashValue {
    *                representation
    *
    */
-  // cf. http://stackoverflow.com/a/140861
   public static byte[] hex2bytes(String s) {
     int len = s.length();
     if (len % 2 != 0) { // sanity check
@@ -90,15 +102,9 @@ public abstract class HashValue {
       "Not a valid hex digest (length is not a multiple of 2): " + s);
     }
     byte[] data = new byte[len / 2];
-    int high, low;
-    for (int i = 0; i < len; i += 2) {
-      high = Character.digit(s.charAt(i), 16);
-      low = Character.digit(s.charAt(i + 1), 16);
-      if (high == -1 || low == -1) {
-        throw new InvalidParameterException(
-        "Not a valid hex digest (invalid characters): " + s);
-      }
-      data[i / 2] = (byte) ((high << 4) + low);
+    if (!HexUtil.decode(s, 0, data.length, data, 0)) {
+      throw new InvalidParameterException(
+      "Not a valid hex digest (invalid characters): " + s);
     }
     return data;
   }
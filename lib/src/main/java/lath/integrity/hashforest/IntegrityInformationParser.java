@@ -0,0 +1,201 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import lath.integrity.error.InvalidInputException;
+import lath.integrity.util.ChecksumUtil;
+import lath.integrity.util.HexUtil;
+
+/**
+ * Reads the text serialization of a hash forest directly from a byte
+ * stream. Every line holds a field name and a value separated by
+ * {@link Const#SEPARATOR}. Field names and values are passed to the checksum
+ * as raw bytes and hex digests are decoded directly into a caller supplied
+ * array, so no objects are created per leaf.
+ */
+class IntegrityInformationParser {
+
+  private static final int BUFSIZE = 64 * 1024;
+  private static final byte SEPARATOR = (byte) Const.SEPARATOR.charAt(0);
+  private static final byte NEWLINE = (byte) Const.NEWLINE.charAt(0);
+  private static final byte CARRIAGE_RETURN = (byte) '\r';
+
+  private final InputStream is;
+  private final ChecksumUtil cp;
+
+  private final byte[] buffer = new byte[BUFSIZE];
+  private int bufferPosition = 0;
+  private int bufferLimit = 0;
+
+  // the current line and the positions of its field and value
+  private byte[] line = new byte[256];
+  private int lineLength = 0;
+  private int fieldEnd = 0;
+  private int valueEnd = 0;
+  // true if the current line was read ahead and not consumed yet
+  private boolean isPending = false;
+
+  IntegrityInformationParser(InputStream is, ChecksumUtil cp) {
+    this.is = is;
+    this.cp = cp;
+  }
+
+  private static InvalidInputException schemaInvalid(String message) {
+    return new InvalidInputException(message, InvalidInputException.ErrorType.SCHEMA_INVALID);
+  }
+
+  private boolean fillBuffer() throws IOException {
+    bufferLimit = is.read(buffer);
+    bufferPosition = 0;
+    return bufferLimit > 0;
+  }
+
+  /*
+   * Reads the next line without the line separator.
+   */
+  private void nextLine() throws IOException, InvalidInputException {
+    lineLength = 0;
+    boolean endOfLine = false;
+    boolean endOfStream = false;
+    while (!endOfLine) {
+      if (bufferPosition >= bufferLimit && !fillBuffer()) {
+        endOfStream = true;
+        break;
+      }
+      int start = bufferPosition;
+      while (bufferPosition < bufferLimit && buffer[bufferPosition] != NEWLINE) {
+        ++bufferPosition;
+      }
+      int length = bufferPosition - start;
+      if (lineLength + length > line.length) {
+        line = Arrays.copyOf(line, Math.max(2 * line.length, lineLength + length));
+      }
+      System.arraycopy(buffer, start, line, lineLength, length);
+      lineLength += length;
+      if (bufferPosition < bufferLimit) {
+        ++bufferPosition;  // skip the newline
+        endOfLine = true;
+      }
+    }
+    if (endOfStream && lineLength == 0) {
+      throw schemaInvalid("Unexpected end of integrity information.");
+    }
+    if (lineLength > 0 && line[lineLength - 1] == CARRIAGE_RETURN) {
+      --lineLength;
+    }
+    fieldEnd = 0;
+    while (fieldEnd < lineLength && line[fieldEnd] != SEPARATOR) {
+      ++fieldEnd;
+    }
+    valueEnd = fieldEnd + 1;
+    while (valueEnd < lineLength && line[valueEnd] != SEPARATOR) {
+      ++valueEnd;
+    }
+    if (valueEnd > lineLength) {
+      throw schemaInvalid("Missing value in line: " + new String(line, 0, lineLength, HashForest.CHARSET));
+    }
+  }
+
+  /*
+   * Makes the next line the current line, unless it was already read ahead.
+   */
+  private void takeLine() throws IOException, InvalidInputException {
+    if (isPending) {
+      isPending = false;
+    } else {
+      nextLine();
+    }
+  }
+
+  private boolean isField(byte[] field) {
+    return Arrays.equals(line, 0, fieldEnd, field, 0, field.length);
+  }
+
+  private void expectField(byte[] expectedField) throws InvalidInputException {
+    if (!isField(expectedField)) {
+      throw schemaInvalid(
+        "Expected " + new String(expectedField, HashForest.CHARSET)
+        + ", got " + new String(line, 0, fieldEnd, HashForest.CHARSET)
+      );
+    }
+  }
+
+  private void updateChecksum() {
+    cp.update(line, 0, fieldEnd);
+    cp.update(line, fieldEnd + 1, valueEnd - fieldEnd - 1);
+  }
+
+  private String value() {
+    return new String(line, fieldEnd + 1, valueEnd - fieldEnd - 1, HashForest.CHARSET);
+  }
+
+  /**
+   * Reads the next line, which must contain the given field, and returns its
+   * value. Field and value are added to the checksum.
+   */
+  String readValue(byte[] expectedField) throws IOException, InvalidInputException {
+    takeLine();
+    expectField(expectedField);
+    updateChecksum();
+    return value();
+  }
+
+  /**
+   * Returns true iff the next line contains the given field, used for
+   * optional fields. The line is read ahead and consumed by the next call of
+   * one of the read methods.
+   */
+  boolean nextFieldIs(byte[] field) throws IOException, InvalidInputException {
+    if (!isPending) {
+      nextLine();
+      isPending = true;
+    }
+    return isField(field);
+  }
+
+  /**
+   * Reads the next line like readValue but doesn't update the checksum.
+   */
+  String readUncheckedValue(byte[] expectedField) throws IOException, InvalidInputException {
+    takeLine();
+    expectField(expectedField);
+    return value();
+  }
+
+  /**
+   * Reads the next line, which must contain the given field and a hex digest
+   * of length bytes, and decodes the digest to dst at the given offset.
+   */
+  void readDigest(byte[] expectedField, byte[] dst, int offset, int length)
+      throws IOException, InvalidInputException {
+    takeLine();
+    expectField(expectedField);
+    int hexStart = fieldEnd + 1;
+    if (valueEnd - hexStart != 2 * length || !HexUtil.decode(line, hexStart, length, dst, offset)) {
+      throw schemaInvalid("Not a valid hex digest: " + value());
+    }
+    updateChecksum();
+  }
+
+}
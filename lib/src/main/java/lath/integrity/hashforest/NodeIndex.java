@@ -0,0 +1,118 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash index over the stored nodes of a list of packed trees, it maps a
+ * digest to the tree and the position of the node. The table uses open
+ * addressing with linear probing, each slot holds the tree index in the
+ * upper and the node index in the lower 32 bits. Since digests are
+ * uniformly distributed their first bytes are used as hash code. Forests
+ * with more nodes than the table can hold are searched linearly.
+ */
+class NodeIndex {
+
+  private static final long EMPTY = -1L;
+  private static final long MAX_CAPACITY = 1 << 30;
+
+  private final List<PackedTree> trees;
+  private final long[] slots;
+  private final int mask;
+
+  NodeIndex(List<PackedTree> trees) {
+    this.trees = trees;
+    long nodes = 0;
+    for (PackedTree tree : trees) {
+      nodes += tree.nodeCount();
+    }
+    // keep the load factor below 1/2
+    long capacity = Long.highestOneBit(2 * nodes + 1) * 2;
+    if (capacity > MAX_CAPACITY) {
+      slots = null;
+      mask = 0;
+      return;
+    }
+    slots = new long[(int) capacity];
+    mask = (int) capacity - 1;
+    Arrays.fill(slots, EMPTY);
+    for (int treeIndex = 0; treeIndex < trees.size(); ++treeIndex) {
+      PackedTree tree = trees.get(treeIndex);
+      for (int node = 0; node < tree.nodeCount(); ++node) {
+        insert(treeIndex, node);
+      }
+    }
+  }
+
+  static int hash(byte[] digests, int offset) {
+    return (digests[offset] << 24)
+      | (digests[offset + 1] & 0xff) << 16
+      | (digests[offset + 2] & 0xff) << 8
+      | (digests[offset + 3] & 0xff);
+  }
+
+  private void insert(int treeIndex, int node) {
+    PackedTree tree = trees.get(treeIndex);
+    int slot = hash(tree.segment(node), tree.offset(node)) & mask;
+    while (slots[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = (long) treeIndex << 32 | node;
+  }
+
+  /*
+   * Returns the slot content (tree index and node index) of a node that
+   * equals the digest at the given offset, or -1 if there is none. The
+   * digest must have the length of the indexed digests.
+   */
+  long find(byte[] digests, int offset) {
+    if (slots == null) {
+      return scan(digests, offset);
+    }
+    int slot = hash(digests, offset) & mask;
+    while (slots[slot] != EMPTY) {
+      PackedTree tree = trees.get((int) (slots[slot] >>> 32));
+      if (tree.nodeEquals((int) slots[slot], digests, offset)) {
+        return slots[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return EMPTY;
+  }
+
+  private long scan(byte[] digests, int offset) {
+    for (int treeIndex = 0; treeIndex < trees.size(); ++treeIndex) {
+      PackedTree tree = trees.get(treeIndex);
+      for (int node = 0; node < tree.nodeCount(); ++node) {
+        if (tree.nodeEquals(node, digests, offset)) {
+          return (long) treeIndex << 32 | node;
+        }
+      }
+    }
+    return EMPTY;
+  }
+
+  boolean contains(byte[] digests, int offset) {
+    return find(digests, offset) != EMPTY;
+  }
+
+}
@@ -0,0 +1,378 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import lath.integrity.error.InvalidInputException;
+
+/**
+ * Complete binary hash tree whose nodes are stored in level order with a
+ * stride of digestLength bytes. Node n has its child nodes at 2*n+1 (left)
+ * and 2*n+2 (right). Because both children are adjacent, a parent is
+ * usually computed by hashing one contiguous slice of memory.
+ *
+ * The nodes are stored in segments of SEGMENT_NODES nodes, so the size of a
+ * tree isn't limited by the maximum array size. A segment is allocated when
+ * it is written first, i.e. a tree that is read from a truncated input only
+ * occupies the memory of the digests actually read.
+ *
+ * A pruned tree stores only the nodes down to a given depth, i.e. a prefix
+ * of the level-order representation. The number of leafs is kept anyway.
+ */
+class PackedTree {
+
+  static final int SEGMENT_SHIFT = 20;
+  static final int SEGMENT_NODES = 1 << SEGMENT_SHIFT;
+  private static final int SEGMENT_MASK = SEGMENT_NODES - 1;
+
+  /*
+   * Subtrees with at most this number of leafs are built sequentially when
+   * a tree is built in parallel.
+   */
+  static final int SEQUENTIAL_CUTOFF = 1 << 10;
+
+  /*
+   * Reads length bytes of digests into the given segment.
+   */
+  interface DigestReader {
+    void read(byte[] digests, int offset, int length) throws IOException, InvalidInputException;
+  }
+
+  final int leafCount;
+  final int digestLength;
+  private final int nodeCount;
+  private final byte[][] segments;
+
+  PackedTree(int leafCount, int digestLength, int nodeCount) {
+    this.leafCount = leafCount;
+    this.digestLength = digestLength;
+    this.nodeCount = nodeCount;
+    this.segments = new byte[(int) (((long) nodeCount + SEGMENT_MASK) >>> SEGMENT_SHIFT)][];
+  }
+
+  int nodeCount() {
+    return nodeCount;
+  }
+
+  boolean isPruned() {
+    return nodeCount < 2 * leafCount - 1;
+  }
+
+  /*
+   * Returns the node index of the given leaf, only valid for trees that are
+   * not pruned.
+   */
+  int leafNode(int leafIndex) {
+    return nodeCount - leafCount + leafIndex;
+  }
+
+  /*
+   * Returns the segment that holds the given node.
+   */
+  byte[] segment(int node) {
+    return segments[node >>> SEGMENT_SHIFT];
+  }
+
+  /*
+   * Returns the byte offset of the given node within its segment.
+   */
+  int offset(int node) {
+    return (node & SEGMENT_MASK) * digestLength;
+  }
+
+  private byte[] writableSegment(int node) {
+    int index = node >>> SEGMENT_SHIFT;
+    if (segments[index] == null) {
+      int firstNode = index << SEGMENT_SHIFT;
+      segments[index] = new byte[Math.min(SEGMENT_NODES, nodeCount - firstNode) * digestLength];
+    }
+    return segments[index];
+  }
+
+  /*
+   * Allocates all segments, e.g. before the inner nodes are computed in
+   * parallel.
+   */
+  private void allocateSegments() {
+    for (int index = 0; index < segments.length; ++index) {
+      writableSegment(index << SEGMENT_SHIFT);
+    }
+  }
+
+  byte[] getNode(int index) {
+    int from = offset(index);
+    return Arrays.copyOfRange(segment(index), from, from + digestLength);
+  }
+
+  byte[] getRoot() {
+    return getNode(0);
+  }
+
+  void setNode(int index, byte[] digest) {
+    System.arraycopy(digest, 0, writableSegment(index), offset(index), digestLength);
+  }
+
+  /*
+   * Returns true iff the given node equals the digest at the given offset.
+   */
+  boolean nodeEquals(int index, byte[] digests, int offset) {
+    int from = offset(index);
+    return Arrays.equals(segment(index), from, from + digestLength, digests, offset, offset + digestLength);
+  }
+
+  /*
+   * Returns true iff the nodes at the given index of both trees are equal.
+   */
+  boolean nodeEquals(int index, PackedTree other) {
+    return other.nodeEquals(index, segment(index), offset(index));
+  }
+
+  boolean rootEquals(PackedTree other) {
+    return nodeEquals(0, other);
+  }
+
+  /*
+   * Reads count digests into the nodes starting at the given node. Each
+   * range of nodes within one segment is read at once.
+   */
+  void readNodes(int first, int count, DigestReader reader) throws IOException, InvalidInputException {
+    int end = first + count;
+    for (int node = first; node < end;) {
+      int length = Math.min(end - node, SEGMENT_NODES - (node & SEGMENT_MASK));
+      reader.read(writableSegment(node), offset(node), length * digestLength);
+      node += length;
+    }
+  }
+
+  /*
+   * Writes count digests starting at the given node.
+   */
+  void writeNodes(int first, int count, OutputStream out) throws IOException {
+    int end = first + count;
+    for (int node = first; node < end;) {
+      int length = Math.min(end - node, SEGMENT_NODES - (node & SEGMENT_MASK));
+      out.write(segment(node), offset(node), length * digestLength);
+      node += length;
+    }
+  }
+
+  /*
+   * Copies count nodes of the source tree to the nodes starting at the
+   * given node of this tree.
+   */
+  private void copyNodes(PackedTree source, int sourceNode, int node, int count) {
+    while (count > 0) {
+      int length = Math.min(count, Math.min(
+        SEGMENT_NODES - (sourceNode & SEGMENT_MASK),
+        SEGMENT_NODES - (node & SEGMENT_MASK)
+      ));
+      System.arraycopy(
+        source.segment(sourceNode), source.offset(sourceNode),
+        writableSegment(node), offset(node),
+        length * digestLength
+      );
+      sourceNode += length;
+      node += length;
+      count -= length;
+    }
+  }
+
+  /*
+   * Returns the number of nodes on the levels 0 to depth of a complete tree
+   * with leafCount leafs.
+   */
+  static int nodeCount(int leafCount, int depth) {
+    int allNodes = 2 * leafCount - 1;
+    if (depth >= 30) {
+      return allNodes;
+    }
+    return Math.min(allNodes, (2 << depth) - 1);
+  }
+
+  /*
+   * Returns the depth of the given node below the root.
+   */
+  static int depthOf(int index) {
+    return 31 - Integer.numberOfLeadingZeros(index + 1);
+  }
+
+  /*
+   * Returns the index of the first leaf below the given node, relative to
+   * the first leaf of this tree.
+   */
+  int firstLeafBelow(int index) {
+    int depth = depthOf(index);
+    return (index + 1 - (1 << depth)) * (leafCount >> depth);
+  }
+
+  int leafCountBelow(int index) {
+    return leafCount >> depthOf(index);
+  }
+
+  PackedTree prune() {
+    return prune(0);
+  }
+
+  /*
+   * Returns a tree that holds only the nodes down to the given depth.
+   */
+  PackedTree prune(int depth) {
+    PackedTree tree = new PackedTree(leafCount, digestLength, Math.min(nodeCount, nodeCount(leafCount, depth)));
+    tree.copyNodes(this, 0, 0, tree.nodeCount);
+    return tree;
+  }
+
+  static PackedTree leaf(byte[] digest) {
+    PackedTree tree = new PackedTree(1, digest.length, 1);
+    tree.setNode(0, digest);
+    return tree;
+  }
+
+  /*
+   * Stores the hash of the concatenation of the left and the right digest at
+   * dstOffset of dst. All digests have the length of the given digest.
+   */
+  static void hashPair(
+    MessageDigest md,
+    byte[] left, int leftOffset,
+    byte[] right, int rightOffset,
+    byte[] dst, int dstOffset
+  ) {
+    int digestLength = md.getDigestLength();
+    md.reset();
+    md.update(left, leftOffset, digestLength);
+    md.update(right, rightOffset, digestLength);
+    try {
+      md.digest(dst, dstOffset, digestLength);
+    } catch (DigestException e) {
+      // clearly a developer error, digest length and buffer don't match
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /*
+   * Computes the node at the given index from its children, which may lie
+   * in different segments.
+   */
+  void hashChildren(MessageDigest md, int index) {
+    int left = 2 * index + 1;
+    hashPair(md, segment(left), offset(left), segment(left + 1), offset(left + 1), writableSegment(index), offset(index));
+  }
+
+  /*
+   * Merges two complete trees of the same size to a new tree whose root is
+   * the hash of the concatenation of both roots. The level-order
+   * representation of the new tree holds on each level the nodes of the left
+   * tree followed by the nodes of the right tree. Only the nodes down to the
+   * given depth are stored, both trees must hold at least the nodes down to
+   * depth - 1.
+   */
+  static PackedTree merge(PackedTree left, PackedTree right, MessageDigest md, int depth) {
+    int leafCount = 2 * left.leafCount;
+    PackedTree tree = new PackedTree(leafCount, left.digestLength, nodeCount(leafCount, depth));
+    hashPair(md, left.segment(0), 0, right.segment(0), 0, tree.writableSegment(0), 0);
+    // copy the levels of both trees that form the levels 1 to depth
+    for (int levelSize = 1; levelSize <= ((long) tree.nodeCount + 1) / 4; levelSize *= 2) {
+      tree.copyNodes(left, levelSize - 1, 2 * levelSize - 1, levelSize);
+      tree.copyNodes(right, levelSize - 1, 3 * levelSize - 1, levelSize);
+    }
+    return tree;
+  }
+
+  /*
+   * Creates a complete tree with leafCount leafs whose nodes aren't set yet.
+   */
+  static PackedTree allocate(int leafCount, int digestLength) {
+    // a complete tree with n leafs has exact 2*n - 1 nodes
+    return new PackedTree(leafCount, digestLength, 2 * leafCount - 1);
+  }
+
+  /*
+   * Computes the inner nodes of the subtree rooted at the given index. On
+   * depth d below the subtree root the subtree holds the 2^d nodes starting
+   * at index (index + 1) * 2^d - 1, the levels are processed bottom up.
+   */
+  void hashSubtree(int index, int subtreeLeafs, MessageDigest md) {
+    for (int levelSize = subtreeLeafs / 2; levelSize >= 1; levelSize /= 2) {
+      int first = (index + 1) * levelSize - 1;
+      for (int node = first + levelSize - 1; node >= first; --node) {
+        hashChildren(md, node);
+      }
+    }
+  }
+
+  /*
+   * Replaces the given leaf and recomputes the nodes on the path to the
+   * root, only valid for trees that are not pruned.
+   */
+  void replaceLeaf(int leafIndex, byte[] digest, MessageDigest md) {
+    int node = leafNode(leafIndex);
+    setNode(node, digest);
+    while (node > 0) {
+      node = (node - 1) / 2;
+      hashChildren(md, node);
+    }
+  }
+
+  /*
+   * Returns a task that computes the inner nodes of this tree on a
+   * ForkJoinPool. Disjoint subtrees are computed in parallel down to the
+   * sequential cutoff.
+   */
+  RecursiveAction buildTask(HashAlgorithm algorithm) {
+    // the tasks must not allocate segments concurrently
+    allocateSegments();
+    return new SubtreeTask(algorithm, 0, leafCount);
+  }
+
+  private class SubtreeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = -2609874160381315127L;
+    private final HashAlgorithm algorithm;
+    private final int index;
+    private final int subtreeLeafs;
+
+    SubtreeTask(HashAlgorithm algorithm, int index, int subtreeLeafs) {
+      this.algorithm = algorithm;
+      this.index = index;
+      this.subtreeLeafs = subtreeLeafs;
+    }
+
+    @Override
+    protected void compute() {
+      if (subtreeLeafs <= SEQUENTIAL_CUTOFF) {
+        hashSubtree(index, subtreeLeafs, algorithm.getDigest());
+      } else {
+        invokeAll(
+          new SubtreeTask(algorithm, 2 * index + 1, subtreeLeafs / 2),
+          new SubtreeTask(algorithm, 2 * index + 2, subtreeLeafs / 2)
+        );
+        hashChildren(algorithm.getDigest(), index);
+      }
+    }
+  }
+
+}
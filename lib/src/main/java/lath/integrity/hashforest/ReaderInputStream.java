@@ -0,0 +1,102 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Input stream that encodes the characters of a reader, used to pass
+ * character streams to the byte based parser.
+ */
+class ReaderInputStream extends InputStream {
+
+  private static final int BUFSIZE = 8 * 1024;
+
+  private final Reader reader;
+  private final CharsetEncoder encoder;
+  private final CharBuffer chars = CharBuffer.allocate(BUFSIZE);
+  private final ByteBuffer bytes;
+  private boolean endOfInput = false;
+
+  ReaderInputStream(Reader reader, Charset charset) {
+    this.reader = reader;
+    this.encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // large enough to encode a full char buffer at once
+    this.bytes = ByteBuffer.allocate((int) Math.ceil(BUFSIZE * encoder.maxBytesPerChar()) + 16);
+    chars.flip();
+    bytes.flip();
+  }
+
+  private boolean fill() throws IOException {
+    while (!bytes.hasRemaining()) {
+      if (endOfInput && !chars.hasRemaining()) {
+        return false;
+      }
+      if (!endOfInput) {
+        chars.compact();
+        int charsRead = reader.read(chars);
+        if (charsRead == -1) {
+          endOfInput = true;
+        }
+        chars.flip();
+      }
+      bytes.clear();
+      encoder.encode(chars, bytes, endOfInput);
+      if (endOfInput) {
+        encoder.flush(bytes);
+      }
+      bytes.flip();
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return fill() ? bytes.get() & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int length = Math.min(len, bytes.remaining());
+    bytes.get(b, off, length);
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+}
@@ -19,61 +19,36 @@
 
 package lath.integrity.hashforest;
 
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
-public class SHA512HashValue extends HashValue {
+/**
+ * SHA-512 hash value, the default algorithm of hash forests.
+ *
+ * The public constructors still declare NoSuchAlgorithmException so code
+ * that catches it keeps compiling, it isn't thrown anymore.
+ */
+public class SHA512HashValue extends DigestHashValue {
+
+  public static final int LENGTH = 64;
 
   public SHA512HashValue(byte[] bytes) throws NoSuchAlgorithmException {
-    super(bytes);
-    if (bytes.length != 64) {
-      throw new IllegalArgumentException("Not a valid SHA512 value, length is not exactly 64 bytes!");
-    }
-    md = MessageDigest.getInstance("SHA-512");
+    this(bytes, true);
   }
 
   public SHA512HashValue(String hexDigest) throws NoSuchAlgorithmException {
-    this(HashValue.hex2bytes(hexDigest));
-    md = MessageDigest.getInstance("SHA-512");
-  }
-
-  // concatenation c'tor to avoid NoSuchAlgorithmException
-  private SHA512HashValue(byte[] bytes, MessageDigest md) {
-    super(bytes);
-    this.md = md;
-  }
-
-  @Override
-  public HashValue concatenate(HashValue other) {
-    if (! (other instanceof SHA512HashValue)) {
-      throw new IllegalArgumentException("Concatenation of different hash types is not supported!");
-    }
-
-    md.reset();
-    md.update(bytes);
-    md.update(other.bytes);
-
-    return new SHA512HashValue(md.digest(), md);
-  }
-
-  @Override
-  public boolean equals(Object obj) {
-    if (! (obj instanceof SHA512HashValue)) {
-      return false;
-    }
-    SHA512HashValue other = (SHA512HashValue) obj;
-    return Arrays.equals(bytes, other.bytes);
+    this(HashValue.hex2bytes(hexDigest), false);
   }
 
-  @Override
-  public int hashCode() {
-    return bytes.hashCode();
+  // the array is only copied if it may be shared with the caller
+  private SHA512HashValue(byte[] bytes, boolean copy) {
+    super(HashAlgorithm.SHA_512, bytes, copy);
   }
 
-  @Override
-  public String toString() {
-    return HashValue.bytes2hex(bytes);
+  /*
+   * Creates a hash value that takes ownership of the given array.
+   */
+  static SHA512HashValue wrap(byte[] bytes) {
+    return new SHA512HashValue(bytes, false);
   }
 
 }
@@ -0,0 +1,123 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+/**
+ * Validates data items against an expected hash forest while they are
+ * hashed. The hash values are added to the actual forest in the order of
+ * the data items. Since the trees of a forest are built one after another,
+ * a tree of the actual forest is complete as soon as its last leaf is added,
+ * its root is compared with the root of the expected tree right away.
+ *
+ * In fail-fast mode {@link #update(HashValue)} signals to stop reading as
+ * soon as a root doesn't match.
+ */
+public class StreamingValidator<T extends HashValue> {
+
+  private final HashForest<T> expected;
+  private final HashForest<T> actual;
+  private final boolean failFast;
+
+  private int leafs = 0;
+  private int checkedTrees = 0;
+  private int checkedLeafs = 0;
+  private boolean isValid = true;
+
+  /**
+   * Creates a validator that adds the hash values to the given actual
+   * forest, which must be empty. The actual forest may be in any mode, e.g.
+   * the mode of the expected forest to find the modified leafs afterwards.
+   * @param expected forest to validate against
+   * @param actual empty forest that is updated with the hash values
+   * @param failFast true to stop at the first mismatching tree
+   */
+  public StreamingValidator(HashForest<T> expected, HashForest<T> actual, boolean failFast) {
+    if (!actual.isEmpty()) {
+      throw new IllegalArgumentException("The actual hash forest must be empty!");
+    }
+    this.expected = expected;
+    this.actual = actual;
+    this.failFast = failFast;
+  }
+
+  /**
+   * Adds the next hash value to the actual forest and checks the tree it
+   * completes, if any.
+   * @param hashValue hash value of the next data item
+   * @return false if reading should be stopped, i.e. in fail-fast mode
+   *         after a mismatch, otherwise true
+   */
+  public boolean update(T hashValue) {
+    actual.update(hashValue);
+    ++leafs;
+    if (checkedTrees < expected.getTreeCount()) {
+      if (leafs == checkedLeafs + expected.getTreeLeafCount(checkedTrees)) {
+        isValid &= expected.rootEquals(checkedTrees, actual);
+        checkedLeafs = leafs;
+        ++checkedTrees;
+      }
+    } else {
+      // more data items than expected
+      isValid = false;
+    }
+    return isValid || !failFast;
+  }
+
+  /**
+   * Called after the last hash value was added, checks that no tree of the
+   * expected forest is missing.
+   * @return true if all trees match, otherwise false
+   */
+  public boolean finish() {
+    if (checkedTrees < expected.getTreeCount()) {
+      isValid = false;
+    }
+    return isValid;
+  }
+
+  /**
+   * Returns false if a mismatch was found so far.
+   * @return true if all checked trees match
+   */
+  public boolean isValid() {
+    return isValid;
+  }
+
+  public boolean isFailFast() {
+    return failFast;
+  }
+
+  /**
+   * Returns the number of trees whose roots were compared so far.
+   * @return number of checked trees
+   */
+  public int getCheckedTrees() {
+    return checkedTrees;
+  }
+
+  /**
+   * Returns the number of data items covered by the checked trees.
+   * @return number of checked leafs
+   */
+  public int getCheckedLeafs() {
+    return checkedLeafs;
+  }
+
+}
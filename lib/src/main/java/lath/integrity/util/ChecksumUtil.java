@@ -21,8 +21,6 @@ package lath.integrity.util;
 
 import java.security.MessageDigest;
 
-import lath.integrity.hashforest.HashValue;
-
 public class ChecksumUtil {
 
   private final MessageDigest md;
@@ -44,9 +42,14 @@ public class ChecksumUtil {
     checksum = null;
   }
 
+  public void update(byte[] bytes, int offset, int length) {
+    md.update(bytes, offset, length);
+    checksum = null;
+  }
+
   public String get() {
     if (checksum == null) {
-      checksum = HashValue.bytes2hex(md.digest());
+      checksum = HexUtil.toHex(md.digest());
     }
     return checksum;
   }
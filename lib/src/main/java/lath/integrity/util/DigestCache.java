@@ -0,0 +1,264 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+import lath.integrity.hashforest.DigestHashValue;
+import lath.integrity.hashforest.HashAlgorithm;
+import lath.integrity.hashforest.HashValue;
+
+/**
+ * Cache of file digests that can be stored on disk, so unchanged files don't
+ * need to be read again when integrity information is regenerated.
+ *
+ * Entries are keyed by the file identity ({@link BasicFileAttributes#fileKey()},
+ * i.e. device and inode on Unix, the absolute path if the platform doesn't
+ * provide a file key) and are only used if size and modification time of
+ * the file still match. Files modified in the last seconds before they were
+ * hashed are not cached, since a later modification within the resolution
+ * of the file system timestamps couldn't be detected.
+ *
+ * Cached digests are only used if the cache is trusted, otherwise every
+ * file is read and the cache is just refreshed. The cache may be used by
+ * several hashing threads at once.
+ *
+ * A cache holds digests of one algorithm, which is noted in the header of
+ * the cache file. A file written for another algorithm is ignored.
+ */
+public class DigestCache {
+
+  public final static Charset CHARSET = Charset.forName("UTF-8");
+  private final static String HEADER = "DIP digest cache 1";
+  private final static String SEPARATOR = " ";
+
+  /*
+   * Files modified within this time before they are hashed are not cached.
+   */
+  private final static long RACY_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+  private static class Entry {
+    final long size;
+    final long modified;
+    final DigestHashValue hashValue;
+
+    Entry(final long size, final long modified, final DigestHashValue hashValue) {
+      this.size = size;
+      this.modified = modified;
+      this.hashValue = hashValue;
+    }
+  }
+
+  private final HashAlgorithm algorithm;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+  private volatile boolean isTrusted = true;
+  private volatile boolean isModified = false;
+
+  public DigestCache() {
+    this(HashAlgorithm.DEFAULT);
+  }
+
+  public DigestCache(final HashAlgorithm algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  public HashAlgorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  // the algorithm is omitted for the default algorithm, like in older cache files
+  private String getHeader() {
+    return algorithm == HashAlgorithm.DEFAULT ? HEADER : HEADER + SEPARATOR + algorithm.getName();
+  }
+
+  /**
+   * Sets whether cached digests are used. If the cache isn't trusted every
+   * file is read, e.g. to validate a DIP, but the cache is still updated.
+   * @param trusted true to use cached digests
+   */
+  public void setTrusted(final boolean trusted) {
+    this.isTrusted = trusted;
+  }
+
+  public boolean isTrusted() {
+    return isTrusted;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of digests that were taken from the cache.
+   * @return number of cache hits
+   */
+  public int getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of files that were read.
+   * @return number of cache misses
+   */
+  public int getMisses() {
+    return misses.get();
+  }
+
+  private static String getKey(final Path file, final BasicFileAttributes attributes) {
+    final Object fileKey = attributes.fileKey();
+    if (fileKey != null) {
+      return fileKey.toString();
+    }
+    return file.toAbsolutePath().normalize().toString();
+  }
+
+  /**
+   * Returns the digest of the given file, from the cache if the cache is
+   * trusted and holds an entry for the unchanged file.
+   * @param file file to hash
+   * @return hash value of the file
+   */
+  public DigestHashValue getHash(final Path file) throws NoSuchAlgorithmException, IOException {
+    return getHash(file, FileUtil.NO_PROGRESS);
+  }
+
+  /*
+   * Like getHash(Path), the bytes hashed are passed to progress, a cached
+   * file counts as hashed at once.
+   */
+  DigestHashValue getHash(final Path file, final LongConsumer progress) throws NoSuchAlgorithmException, IOException {
+    final BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      // reported like a file that can't be opened for hashing
+      return FileUtil.getHash(file, algorithm);
+    }
+    final String key = getKey(file, attributes);
+    final long size = attributes.size();
+    final long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    if (isTrusted) {
+      final Entry entry = entries.get(key);
+      if (entry != null && entry.size == size && entry.modified == modified) {
+        hits.incrementAndGet();
+        progress.accept(size);
+        return entry.hashValue;
+      }
+    }
+    final long hashed = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    final DigestHashValue hashValue = FileUtil.getHash(file, algorithm, progress);
+    misses.incrementAndGet();
+    if (modified < hashed - RACY_INTERVAL) {
+      entries.put(key, new Entry(size, modified, hashValue));
+    } else {
+      entries.remove(key);
+    }
+    isModified = true;
+    return hashValue;
+  }
+
+  /**
+   * Reads the entries stored in the given file. A missing file is treated
+   * as an empty cache, malformed lines are skipped.
+   * @param file cache file
+   */
+  public void load(final Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file, CHARSET)) {
+      if (!getHeader().equals(reader.readLine())) {
+        return;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // the key is the last field, it may contain the separator
+        final String[] fields = line.split(SEPARATOR, 4);
+        if (fields.length != 4) {
+          continue;
+        }
+        try {
+          final DigestHashValue hashValue = algorithm.createHashValue(HashValue.hex2bytes(fields[0]));
+          final long size = Long.parseLong(fields[1]);
+          final long modified = Long.parseLong(fields[2]);
+          entries.put(fields[3], new Entry(size, modified, hashValue));
+        } catch (IllegalArgumentException e) {
+          // skip malformed entry, the file is hashed again
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes all entries to the given file if the cache was modified. The
+   * file is replaced atomically where supported.
+   * @param file cache file
+   */
+  public void save(final Path file) throws IOException {
+    if (!isModified) {
+      return;
+    }
+    final Path directory = file.toAbsolutePath().getParent();
+    final Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(tempFile, CHARSET)) {
+        writer.write(getHeader());
+        writer.write("\n");
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+          final Entry value = entry.getValue();
+          writer.write(value.hashValue.getHexString());
+          writer.write(SEPARATOR);
+          writer.write(Long.toString(value.size));
+          writer.write(SEPARATOR);
+          writer.write(Long.toString(value.modified));
+          writer.write(SEPARATOR);
+          writer.write(entry.getKey());
+          writer.write("\n");
+        }
+      }
+      try {
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    isModified = false;
+  }
+
+}
@@ -0,0 +1,66 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import java.util.Collections;
+import java.util.List;
+
+import lath.integrity.hashforest.DigestHashValue;
+
+/**
+ * Hash value of a file for the hash forest together with the additional
+ * digests that were computed in the same read, see
+ * {@link FileUtil#getDigests(String, lath.integrity.hashforest.HashAlgorithm, List)}.
+ */
+public class FileDigests {
+
+  private final DigestHashValue hashValue;
+  private final List<String> algorithms;
+  private final byte[][] digests;
+
+  FileDigests(final DigestHashValue hashValue) {
+    this(hashValue, Collections.<String>emptyList(), new byte[0][]);
+  }
+
+  FileDigests(final DigestHashValue hashValue, final List<String> algorithms, final byte[][] digests) {
+    this.hashValue = hashValue;
+    this.algorithms = algorithms;
+    this.digests = digests;
+  }
+
+  public DigestHashValue getHashValue() {
+    return hashValue;
+  }
+
+  public List<String> getAlgorithms() {
+    return algorithms;
+  }
+
+  /**
+   * Returns the hex digest of the given additional algorithm.
+   * @param algorithm name of the algorithm as passed to FileUtil
+   * @return hex digest or null if it wasn't computed
+   */
+  public String getHexDigest(final String algorithm) {
+    final int index = algorithms.indexOf(algorithm);
+    return index < 0 ? null : HexUtil.toHex(digests[index]);
+  }
+
+}
@@ -19,45 +19,372 @@
 
 package lath.integrity.util;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
 
+import lath.integrity.hashforest.DigestHashValue;
+import lath.integrity.hashforest.HashAlgorithm;
 import lath.integrity.hashforest.SHA512HashValue;
 
 /**
  * Helper class for file hashing.
+ *
+ * Files are read through a {@link FileChannel} into a reusable buffer that
+ * is passed to the digest without any per chunk allocation. Buffer and
+ * digest are confined to the calling thread, so the helper can be used from
+ * several hashing threads at once.
+ *
+ * Large files can be memory-mapped instead, see {@link MappingMode}. They are
+ * mapped in windows of at most {@link #MAPPING_WINDOW_SIZE} bytes, so files
+ * larger than 2 GB are supported as well. A window can't be unmapped
+ * explicitly, it stays mapped until it is garbage collected. Many large
+ * files hashed in quick succession may therefore use up address space or
+ * the number of mappings per process, and on Windows a file can't be
+ * deleted or renamed while a window of it is mapped. If a window can't be
+ * mapped, the rest of the file is read through the channel. A file that is
+ * truncated while it is mapped fails with an IOException.
+ *
+ * Several digests of a file can be computed while it is read once, see
+ * {@link #getDigests(String, HashAlgorithm, List)}.
  */
 public class FileUtil {
 
+  /**
+   * Selects how file contents are passed to the digest.
+   */
+  public enum MappingMode {
+    AUTO("auto"),    // map files larger than the mapping threshold
+    ALWAYS("on"),    // map all non-empty files
+    NEVER("off");    // always use streaming reads
+
+    private String modeString;
+
+    public String toString() {
+      return modeString;
+    };
+
+    private MappingMode(String s) {
+      this.modeString = s;
+    }
+
+    public static MappingMode fromString(String s) {
+      for (MappingMode mode : MappingMode.values()) {
+        if (mode.modeString.equals(s)) {
+          return mode;
+        }
+      }
+      throw new IllegalArgumentException("Unknown mapping mode: " + s);
+    }
+  }
+
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+  public static final long DEFAULT_MAPPING_THRESHOLD = 64L * 1024 * 1024;
+  public static final long MAPPING_WINDOW_SIZE = 256L * 1024 * 1024;
+
+  private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+  private static volatile boolean useDirectBuffer = false;
+  private static volatile MappingMode mappingMode = MappingMode.AUTO;
+  private static volatile long mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+
+  private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+  // progress of the public methods, which don't report it
+  static final LongConsumer NO_PROGRESS = bytes -> { };
+  // slice of a mapped window hashed at once, the granularity of the progress
+  private static final int MAPPING_SLICE_SIZE = 16 * 1024 * 1024;
+
+  // one instance per position of the extra algorithms, the same algorithm may occur twice
+  private static final ThreadLocal<List<MessageDigest>> extraDigests =
+    ThreadLocal.withInitial(ArrayList::new);
+
+  /**
+   * Sets the size of the read buffer used per hashing thread.
+   * @param size buffer size in bytes
+   */
+  public static void setBufferSize(final int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive: " + size);
+    }
+    bufferSize = size;
+  }
+
+  public static int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Sets whether direct (off-heap) buffers are used for reading files.
+   * @param direct true to use direct buffers
+   */
+  public static void setDirectBuffer(final boolean direct) {
+    useDirectBuffer = direct;
+  }
+
+  public static boolean isDirectBuffer() {
+    return useDirectBuffer;
+  }
+
+  public static void setMappingMode(final MappingMode mode) {
+    mappingMode = mode;
+  }
+
+  public static MappingMode getMappingMode() {
+    return mappingMode;
+  }
+
+  /**
+   * Sets the file size above which files are memory-mapped in
+   * {@link MappingMode#AUTO}.
+   * @param threshold file size in bytes
+   */
+  public static void setMappingThreshold(final long threshold) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Mapping threshold must not be negative: " + threshold);
+    }
+    mappingThreshold = threshold;
+  }
+
+  public static long getMappingThreshold() {
+    return mappingThreshold;
+  }
+
+  private static boolean isMapped(final long fileSize) {
+    switch (mappingMode) {
+      case ALWAYS:
+        return fileSize > 0;
+      case NEVER:
+        return false;
+      default:
+        return fileSize > mappingThreshold;
+    }
+  }
+
+  private static ByteBuffer getBuffer() {
+    ByteBuffer buffer = buffers.get();
+    if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != useDirectBuffer) {
+      buffer = useDirectBuffer ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+      buffers.set(buffer);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
   /**
    * Helper method to compute the SHA512 hash value for a given file.
    * @throws NoSuchAlgorithmException
-   * @throws MissingDataFileException
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file couldn't be read
    */
   public static SHA512HashValue getHash(String fileName)
       throws NoSuchAlgorithmException, FileNotFoundException, IOException {
-    final MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
-    final int bufferSize = 128;
-    final byte[] buffer = new byte[bufferSize];
-    final File f = new File(fileName);
-    final FileInputStream fis = new FileInputStream(f);
-    int bytesRead = fis.read(buffer);
-    // file is empty, update with empty message
-    if (bytesRead == -1) {
-      sha512.update(new byte[0]);
-    } else {
-      sha512.update(Arrays.copyOf(buffer, bytesRead));
-    }
-    while ((bytesRead = fis.read(buffer)) != -1) {
-      sha512.update(Arrays.copyOf(buffer, bytesRead));
-    }
-    fis.close();
-    return new SHA512HashValue(sha512.digest());
+    return (SHA512HashValue) getHash(fileName, HashAlgorithm.SHA_512);
+  }
+
+  /**
+   * Helper method to compute the hash value for a given file with the given
+   * algorithm.
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file couldn't be read
+   */
+  public static DigestHashValue getHash(String fileName, HashAlgorithm algorithm)
+      throws FileNotFoundException, IOException {
+    return getHash(Paths.get(fileName), algorithm);
+  }
+
+  /**
+   * Helper method to compute the hash value for a given file with the given
+   * algorithm. The file may be located in any file system, e.g. in a ZIP
+   * file system, only files of the default file system are memory-mapped.
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file couldn't be read
+   */
+  public static DigestHashValue getHash(Path file, HashAlgorithm algorithm)
+      throws FileNotFoundException, IOException {
+    return getHash(file, algorithm, NO_PROGRESS);
+  }
+
+  /*
+   * Like getHash(Path, HashAlgorithm), the number of bytes of each chunk is
+   * passed to progress as soon as the chunk is hashed.
+   */
+  static DigestHashValue getHash(final Path file, final HashAlgorithm algorithm, final LongConsumer progress)
+      throws FileNotFoundException, IOException {
+    final MessageDigest md = algorithm.getDigest();
+    update(file, progress, md);
+    return algorithm.createHashValue(md.digest());
+  }
+
+  /**
+   * Computes the hash value of the given file with the given algorithm and
+   * the digests of the extra algorithms (standard names of the Java
+   * platform, e.g. MD5 or SHA-256) while the file is read once.
+   * @param fileName file to hash
+   * @param algorithm algorithm of the hash value
+   * @param extraAlgorithms algorithms of the additional digests
+   * @return hash value and additional digests of the file
+   * @throws NoSuchAlgorithmException if an extra algorithm isn't supported
+   * @throws FileNotFoundException if the file doesn't exist
+   * @throws IOException if the file couldn't be read
+   */
+  public static FileDigests getDigests(String fileName, HashAlgorithm algorithm, List<String> extraAlgorithms)
+      throws NoSuchAlgorithmException, FileNotFoundException, IOException {
+    return getDigests(Paths.get(fileName), algorithm, extraAlgorithms);
+  }
+
+  /**
+   * Computes the hash value and the digests of the extra algorithms of the
+   * given file, see {@link #getDigests(String, HashAlgorithm, List)}.
+   */
+  public static FileDigests getDigests(Path file, HashAlgorithm algorithm, List<String> extraAlgorithms)
+      throws NoSuchAlgorithmException, FileNotFoundException, IOException {
+    return getDigests(file, algorithm, extraAlgorithms, NO_PROGRESS);
+  }
+
+  /*
+   * Like getDigests(Path, HashAlgorithm, List), the number of bytes of each
+   * chunk is passed to progress as soon as the chunk is hashed.
+   */
+  static FileDigests getDigests(
+    final Path file,
+    final HashAlgorithm algorithm,
+    final List<String> extraAlgorithms,
+    final LongConsumer progress
+  ) throws NoSuchAlgorithmException, FileNotFoundException, IOException {
+    final MessageDigest[] mds = new MessageDigest[extraAlgorithms.size() + 1];
+    mds[0] = algorithm.getDigest();
+    for (int i = 0; i < extraAlgorithms.size(); ++i) {
+      mds[i + 1] = getExtraDigest(i, extraAlgorithms.get(i));
+    }
+    update(file, progress, mds);
+    final byte[][] digests = new byte[extraAlgorithms.size()][];
+    for (int i = 0; i < digests.length; ++i) {
+      digests[i] = mds[i + 1].digest();
+    }
+    return new FileDigests(algorithm.createHashValue(mds[0].digest()), extraAlgorithms, digests);
+  }
+
+  private static MessageDigest getExtraDigest(final int index, final String algorithm)
+      throws NoSuchAlgorithmException {
+    final List<MessageDigest> digests = extraDigests.get();
+    while (digests.size() <= index) {
+      digests.add(null);
+    }
+    MessageDigest md = digests.get(index);
+    if (md == null || !md.getAlgorithm().equals(algorithm)) {
+      md = MessageDigest.getInstance(algorithm);
+      digests.set(index, md);
+    }
+    md.reset();
+    return md;
+  }
+
+  private static void update(final Path file, final LongConsumer progress, final MessageDigest... mds)
+      throws IOException {
+    try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+      if (channel instanceof FileChannel && isMapped(channel.size())) {
+        updateMapped(mds, (FileChannel) channel, progress);
+      } else {
+        updateStreamed(mds, channel, progress);
+      }
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException(file.toString());
+    }
+  }
+
+  /**
+   * Updates the digest with length bytes of the channel starting at
+   * position, e.g. with an entry of an archive. The position of the channel
+   * isn't changed. The number of bytes of each chunk is passed to progress.
+   * @throws EOFException if the channel ends before length bytes were read
+   */
+  static void update(
+    final MessageDigest md,
+    final FileChannel channel,
+    long position,
+    final long length,
+    final LongConsumer progress
+  ) throws IOException {
+    final ByteBuffer buffer = getBuffer();
+    final long end = position + length;
+    while (position < end) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      final int read = channel.read(buffer, position);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      position += read;
+      buffer.flip();
+      md.update(buffer);
+      progress.accept(read);
+    }
+  }
+
+  /*
+   * Passes each chunk to all digests, the buffer is rewound for every digest.
+   */
+  private static void updateStreamed(
+    final MessageDigest[] mds,
+    final ReadableByteChannel channel,
+    final LongConsumer progress
+  ) throws IOException {
+    final ByteBuffer buffer = getBuffer();
+    while (channel.read(buffer) != -1) {
+      buffer.flip();
+      for (final MessageDigest md : mds) {
+        buffer.rewind();
+        md.update(buffer);
+      }
+      progress.accept(buffer.limit());
+      buffer.clear();
+    }
+  }
+
+  /*
+   * Hashes the window slice by slice, so the progress is reported while a
+   * large window is hashed. If a window can't be mapped, e.g. because the
+   * address space is exhausted, the rest of the file is streamed.
+   */
+  private static void updateMapped(final MessageDigest[] mds, final FileChannel channel, final LongConsumer progress)
+      throws IOException {
+    final long size = channel.size();
+    for (long position = 0; position < size; position += MAPPING_WINDOW_SIZE) {
+      final long windowSize = Math.min(MAPPING_WINDOW_SIZE, size - position);
+      final ByteBuffer window;
+      try {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+      } catch (IOException e) {
+        updateStreamed(mds, channel.position(position), progress);
+        return;
+      }
+      for (int slice = 0; slice < windowSize; slice += MAPPING_SLICE_SIZE) {
+        final int sliceEnd = (int) Math.min(slice + MAPPING_SLICE_SIZE, windowSize);
+        for (final MessageDigest md : mds) {
+          window.limit(sliceEnd).position(slice);
+          try {
+            md.update(window);
+          } catch (InternalError e) {
+            // the JVM reports an access behind the end of a truncated file (SIGBUS) this way
+            throw new IOException("File was truncated while it was read", e);
+          }
+        }
+        progress.accept(sliceEnd - slice);
+      }
+    }
   }
 
 }
@@ -0,0 +1,163 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven conversion between bytes and their lower case hexadecimal
+ * representation. Apart from toHex the methods read from and write to caller
+ * supplied arrays or buffers and don't allocate. The decode methods accept
+ * upper and lower case digits and return false if a character is not a
+ * hexadecimal digit, the content of the destination is undefined then.
+ */
+public class HexUtil {
+
+  private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+  /*
+   * Maps a byte to its two hex digits, the high digit in the upper 8 bits.
+   */
+  private static final char[] ENCODED = new char[256];
+
+  /*
+   * Maps an ASCII character to its value or -1 if it's not a hex digit.
+   */
+  private static final byte[] VALUES = new byte[128];
+
+  static {
+    for (int b = 0; b < 256; ++b) {
+      ENCODED[b] = (char) (DIGITS[b >>> 4] << 8 | DIGITS[b & 0xf]);
+    }
+    Arrays.fill(VALUES, (byte) -1);
+    for (int i = 0; i < 16; ++i) {
+      VALUES[DIGITS[i]] = (byte) i;
+      VALUES[Character.toUpperCase(DIGITS[i])] = (byte) i;
+    }
+  }
+
+  private HexUtil() {
+  }
+
+  /**
+   * Returns the value of the given hex digit or -1 if c is not a hex digit.
+   * @param c character
+   * @return value of the digit or -1
+   */
+  public static int digit(int c) {
+    return c < 128 && c >= 0 ? VALUES[c] : -1;
+  }
+
+  /**
+   * Writes the 2 * length hex digits of the given bytes to dst.
+   */
+  public static void encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+    for (int i = 0; i < length; ++i) {
+      char digits = ENCODED[src[offset + i] & 0xff];
+      dst[dstOffset++] = (char) (digits >>> 8);
+      dst[dstOffset++] = (char) (digits & 0xff);
+    }
+  }
+
+  /**
+   * Writes the 2 * length hex digits of the given bytes as ASCII to dst.
+   */
+  public static void encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    for (int i = 0; i < length; ++i) {
+      char digits = ENCODED[src[offset + i] & 0xff];
+      dst[dstOffset++] = (byte) (digits >>> 8);
+      dst[dstOffset++] = (byte) digits;
+    }
+  }
+
+  /**
+   * Puts the 2 * length hex digits of the given bytes as ASCII to dst.
+   */
+  public static void encode(byte[] src, int offset, int length, ByteBuffer dst) {
+    for (int i = 0; i < length; ++i) {
+      char digits = ENCODED[src[offset + i] & 0xff];
+      dst.put((byte) (digits >>> 8));
+      dst.put((byte) digits);
+    }
+  }
+
+  /**
+   * Returns the hexadecimal string representation of the given bytes.
+   */
+  public static String toHex(byte[] src, int offset, int length) {
+    char[] hex = new char[2 * length];
+    encode(src, offset, length, hex, 0);
+    return new String(hex);
+  }
+
+  public static String toHex(byte[] src) {
+    return toHex(src, 0, src.length);
+  }
+
+  /**
+   * Decodes length bytes from the 2 * length ASCII hex digits starting at
+   * srcOffset to dst.
+   * @return true iff all characters were hex digits
+   */
+  public static boolean decode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+    int invalid = 0;
+    for (int i = 0; i < length; ++i) {
+      int high = digit(src[srcOffset++]);
+      int low = digit(src[srcOffset++]);
+      invalid |= high | low;
+      dst[dstOffset + i] = (byte) (high << 4 | low);
+    }
+    return invalid >= 0;
+  }
+
+  /**
+   * Decodes length bytes from the 2 * length hex digits starting at srcOffset
+   * to dst.
+   * @return true iff all characters were hex digits
+   */
+  public static boolean decode(CharSequence src, int srcOffset, int length, byte[] dst, int dstOffset) {
+    int invalid = 0;
+    for (int i = 0; i < length; ++i) {
+      int high = digit(src.charAt(srcOffset++));
+      int low = digit(src.charAt(srcOffset++));
+      invalid |= high | low;
+      dst[dstOffset + i] = (byte) (high << 4 | low);
+    }
+    return invalid >= 0;
+  }
+
+  /**
+   * Decodes length bytes from the next 2 * length ASCII hex digits of src to
+   * dst.
+   * @return true iff all characters were hex digits
+   */
+  public static boolean decode(ByteBuffer src, int length, byte[] dst, int dstOffset) {
+    int invalid = 0;
+    for (int i = 0; i < length; ++i) {
+      int high = digit(src.get());
+      int low = digit(src.get());
+      invalid |= high | low;
+      dst[dstOffset + i] = (byte) (high << 4 | low);
+    }
+    return invalid >= 0;
+  }
+
+}
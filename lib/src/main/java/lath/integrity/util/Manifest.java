@@ -0,0 +1,250 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import lath.integrity.error.InvalidInputException;
+
+/**
+ * Payload manifests in the format of BagIt (RFC 8493), i.e. one file per
+ * algorithm with a line "digest  path" per data file. The digests are
+ * collected while the files are hashed for the hash forest, see
+ * {@link ParallelHashUtil#setManifest(Manifest)}, so no file is read twice.
+ * The paths are the data identifiers with / as separator.
+ *
+ * An existing manifest can be read with {@link #readFrom(String, Reader)},
+ * e.g. to build integrity information from trusted digests without reading
+ * the files again.
+ */
+public class Manifest {
+
+  public final static Charset CHARSET = Charset.forName("UTF-8");
+
+  private final List<String> algorithms;
+  private final List<String> identifiers = new ArrayList<String>();
+  private final List<List<String>> hexDigests = new ArrayList<List<String>>();
+
+  /**
+   * Creates an empty manifest for the given algorithms.
+   * @param algorithms standard names of the Java platform, e.g. MD5 or SHA-256
+   * @throws IllegalArgumentException if an algorithm isn't supported or
+   *         occurs more than once, also under an alias
+   */
+  public Manifest(final List<String> algorithms) {
+    final Set<String> standardNames = new HashSet<String>();
+    for (final String algorithm : algorithms) {
+      if (!standardNames.add(getStandardName(algorithm))) {
+        throw new IllegalArgumentException("Duplicate digest algorithm: " + algorithm);
+      }
+      hexDigests.add(new ArrayList<String>());
+    }
+    this.algorithms = Collections.unmodifiableList(new ArrayList<String>(algorithms));
+  }
+
+  /**
+   * Returns the standard name of a digest algorithm given by its name or an
+   * alias, e.g. SHA-256 for sha256.
+   * @param algorithm name or alias of the algorithm
+   * @return standard name of the algorithm
+   * @throws IllegalArgumentException if the algorithm isn't supported
+   */
+  public static String getStandardName(final String algorithm) {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm, e);
+    }
+    final Provider.Service service = md.getProvider().getService("MessageDigest", algorithm);
+    return service != null ? service.getAlgorithm() : algorithm.toUpperCase(Locale.ROOT);
+  }
+
+  public List<String> getAlgorithms() {
+    return algorithms;
+  }
+
+  /**
+   * Adds the digests of a data file, the files are listed in the order they
+   * are added.
+   * @param identifier data identifier of the file
+   * @param digests digests of the file, computed for all algorithms of this manifest
+   */
+  public void add(final String identifier, final FileDigests digests) {
+    identifiers.add(identifier);
+    for (int i = 0; i < algorithms.size(); ++i) {
+      hexDigests.get(i).add(digests.getHexDigest(algorithms.get(i)));
+    }
+  }
+
+  /**
+   * Returns the digest of the file at the given position.
+   * @param algorithm one of the algorithms of this manifest
+   * @param index position of the file
+   * @return digest
+   */
+  public byte[] getDigest(final String algorithm, final int index) {
+    final String hex = getHexDigests(algorithm).get(index);
+    final byte[] digest = new byte[hex.length() / 2];
+    HexUtil.decode(hex, 0, digest.length, digest, 0);
+    return digest;
+  }
+
+  public int size() {
+    return identifiers.size();
+  }
+
+  public List<String> getIdentifiers() {
+    return Collections.unmodifiableList(identifiers);
+  }
+
+  /**
+   * Returns the hex digests of the given algorithm in the order of
+   * {@link #getIdentifiers()}.
+   * @param algorithm one of the algorithms of this manifest
+   * @return hex digests
+   */
+  public List<String> getHexDigests(final String algorithm) {
+    final int index = algorithms.indexOf(algorithm);
+    if (index < 0) {
+      throw new IllegalArgumentException("Algorithm not in manifest: " + algorithm);
+    }
+    return Collections.unmodifiableList(hexDigests.get(index));
+  }
+
+  /**
+   * Returns the file name of the manifest of the given algorithm, e.g.
+   * manifest-sha256.txt for SHA-256.
+   * @param algorithm name of the algorithm
+   * @return file name of the manifest
+   */
+  public static String getFileName(final String algorithm) {
+    return "manifest-" + algorithm.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "") + ".txt";
+  }
+
+  /*
+   * Line breaks and percent signs in paths are percent-encoded as required
+   * by BagIt.
+   */
+  private static String encodePath(final String identifier) {
+    return identifier
+      .replace(File.separatorChar, '/')
+      .replace("%", "%25")
+      .replace("\r", "%0D")
+      .replace("\n", "%0A");
+  }
+
+  private static String decodePath(final String path) {
+    return path
+      .replace("%0A", "\n")
+      .replace("%0D", "\r")
+      .replace("%25", "%")
+      .replace('/', File.separatorChar);
+  }
+
+  /**
+   * Reads a manifest with lines "digest  path" of one algorithm, e.g. a
+   * BagIt payload manifest. The files are kept in the order of the lines.
+   * @param algorithm name of the algorithm of the digests
+   * @param r reader of the manifest
+   * @return manifest with the digests of the given algorithm
+   * @throws InvalidInputException if a line isn't a digest of the algorithm
+   *   and a path or a path is listed twice
+   */
+  public static Manifest readFrom(final String algorithm, final Reader r)
+      throws IOException, InvalidInputException {
+    final Manifest manifest = new Manifest(Collections.singletonList(algorithm));
+    final int hexLength;
+    try {
+      hexLength = MessageDigest.getInstance(algorithm).getDigestLength() * 2;
+    } catch (NoSuchAlgorithmException e) {
+      // checked by the constructor
+      throw new RuntimeException(e);
+    }
+    final Set<String> paths = new HashSet<String>();
+    final BufferedReader reader = new BufferedReader(r);
+    final byte[] digest = new byte[hexLength / 2];
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      ++lineNumber;
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      final String[] fields = line.split("[ \t]+", 2);
+      if (fields.length != 2 || fields[0].length() != hexLength
+          || !HexUtil.decode(fields[0], 0, digest.length, digest, 0)) {
+        throw new InvalidInputException(
+          "Invalid digest in line " + lineNumber + " of manifest!",
+          InvalidInputException.ErrorType.SCHEMA_INVALID
+        );
+      }
+      final String identifier = decodePath(fields[1]);
+      if (!paths.add(identifier)) {
+        throw new InvalidInputException(
+          "Duplicate path in line " + lineNumber + " of manifest!",
+          InvalidInputException.ErrorType.SCHEMA_INVALID
+        );
+      }
+      manifest.identifiers.add(identifier);
+      manifest.hexDigests.get(0).add(fields[0].toLowerCase(Locale.ROOT));
+    }
+    return manifest;
+  }
+
+  public void writeTo(final String algorithm, final Writer w) throws IOException {
+    final List<String> digests = getHexDigests(algorithm);
+    for (int i = 0; i < identifiers.size(); ++i) {
+      w.write(digests.get(i));
+      w.write("  ");
+      w.write(encodePath(identifiers.get(i)));
+      w.write("\n");
+    }
+  }
+
+  /**
+   * Writes the manifests of all algorithms to the given directory.
+   * @param dir target directory
+   */
+  public void write(final Path dir) throws IOException {
+    for (final String algorithm : algorithms) {
+      try (Writer w = Files.newBufferedWriter(dir.resolve(getFileName(algorithm)), CHARSET)) {
+        writeTo(algorithm, w);
+      }
+    }
+  }
+
+}
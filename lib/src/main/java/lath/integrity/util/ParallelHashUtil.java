@@ -0,0 +1,473 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lath.integrity.error.FileHashException;
+import lath.integrity.hashforest.HashForest;
+import lath.integrity.hashforest.DigestHashValue;
+import lath.integrity.hashforest.HashAlgorithm;
+
+/**
+ * Helper class that hashes the data files of a DIP on a pool of worker
+ * threads. The files are read in parallel, but the hash values are handed
+ * to the caller strictly in the order of the given identifiers (cf.
+ * {@link OrderUtil}), so the resulting hash forest is identical to the one
+ * computed by hashing the files one after another.
+ *
+ * Files that occur more than once in one computation, e.g. hard links into
+ * a shared content store or a path that is listed twice, are identified by
+ * their file key (device and inode on Unix) and read only once. Every
+ * occurrence is still handed to the caller with its own index. Where the
+ * link count is known (Unix) only files with several links are remembered,
+ * until all of their links have been seen, and paths listed more than once,
+ * so the memory doesn't grow with the number of files. Elsewhere all files
+ * of a computation are remembered.
+ */
+public class ParallelHashUtil {
+
+  /**
+   * Callback that receives the hash values in the order of the identifiers.
+   * It is always called from the thread that started the hashing.
+   */
+  public interface Listener {
+    void hashed(int index, String identifier, DigestHashValue hashValue);
+  }
+
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /*
+   * Number of files that may be hashed ahead of the file the caller waits
+   * for, per worker thread. Bounds the memory used for finished hash values.
+   */
+  private static final int TASKS_PER_THREAD = 4;
+
+  private final int threads;
+  // shared with other computations if set, otherwise a pool is created per computation
+  private final ExecutorService sharedExecutor;
+  private volatile boolean isCancelled = false;
+  private DigestCache digestCache = null;
+  private HashAlgorithm algorithm = HashAlgorithm.DEFAULT;
+  private Manifest manifest = null;
+  private final AtomicInteger duplicates = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong hashedBytes = new AtomicLong();
+
+  public ParallelHashUtil() {
+    this(DEFAULT_THREADS);
+  }
+
+  public ParallelHashUtil(final int threads) {
+    this(null, threads);
+  }
+
+  /**
+   * Creates a helper that hashes on the given executor, e.g. a pool shared
+   * by several DIPs that are processed at the same time. The executor isn't
+   * shut down by this class.
+   * @param executor executor to run the hash tasks on, null for an own pool per computation
+   * @param threads number of threads of the executor, bounds the files hashed ahead
+   */
+  public ParallelHashUtil(final ExecutorService executor, final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one hashing thread is required: " + threads);
+    }
+    this.sharedExecutor = executor;
+    this.threads = threads;
+  }
+
+  /**
+   * Creates a pool of daemon threads that can be shared by several instances.
+   * @param threads number of hashing threads
+   * @return new executor
+   */
+  public static ExecutorService newExecutor(final int threads) {
+    return Executors.newFixedThreadPool(threads, new HashThreadFactory());
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets a cache that is used and updated by the hashing threads, null to
+   * read every file.
+   * @param digestCache digest cache or null
+   */
+  public void setDigestCache(final DigestCache digestCache) {
+    this.digestCache = digestCache;
+  }
+
+  public DigestCache getDigestCache() {
+    return digestCache;
+  }
+
+  /**
+   * Sets the algorithm used if the files are hashed for a listener, a hash
+   * forest is always updated with hash values of its own algorithm.
+   * @param algorithm hash algorithm
+   */
+  public void setAlgorithm(final HashAlgorithm algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  public HashAlgorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Sets a manifest that receives further digests of every file in the
+   * order of the identifiers, null to compute the hash values only. The
+   * digests are computed while the file is read for the hash value.
+   * @param manifest manifest or null
+   */
+  public void setManifest(final Manifest manifest) {
+    this.manifest = manifest;
+  }
+
+  public Manifest getManifest() {
+    return manifest;
+  }
+
+  /**
+   * Stops a running hash computation, pending files are not read anymore.
+   * The flag is reset when the next computation is started.
+   */
+  public void cancel() {
+    isCancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return isCancelled;
+  }
+
+  /**
+   * Returns the number of files of the last computation whose hash value was
+   * taken from an earlier occurrence of the same physical file.
+   * @return number of files that weren't read again
+   */
+  public int getDuplicates() {
+    return duplicates.get();
+  }
+
+  /**
+   * Returns the total size of the files of the last computation, files that
+   * occur more than once are counted for every occurrence.
+   * @return size in bytes
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Returns the number of bytes hashed so far by the running or last
+   * computation. It grows while a file is read, so it can be polled by
+   * another thread to show the progress within large files. Files taken
+   * from the cache or from an earlier occurrence count as hashed at once.
+   * @return hashed size in bytes
+   */
+  public long getHashedBytes() {
+    return hashedBytes.get();
+  }
+
+  /**
+   * Hashes the files denoted by the identifiers (relative to dir) with the
+   * algorithm of the given hash forest and updates the forest in the order
+   * of the identifiers.
+   * @param dir directory the identifiers are relative to
+   * @param identifiers ordered list of data identifiers
+   * @param hf hash forest to update
+   * @return true if all files were hashed, false if the computation was cancelled
+   * @throws FileHashException if a file could not be read
+   */
+  public boolean hash(
+    final Path dir,
+    final List<String> identifiers,
+    final HashForest<DigestHashValue> hf
+  ) throws FileHashException {
+    return hash(dir, identifiers, hf.getAlgorithm(), (index, identifier, hashValue) -> hf.update(hashValue));
+  }
+
+  /**
+   * Hashes the files denoted by the identifiers (relative to dir) and calls
+   * the listener for each file in the order of the identifiers.
+   * @param dir directory the identifiers are relative to
+   * @param identifiers ordered list of data identifiers
+   * @param listener callback for the computed hash values
+   * @return true if all files were hashed, false if the computation was cancelled
+   * @throws FileHashException if a file could not be read
+   */
+  public boolean hash(
+    final Path dir,
+    final List<String> identifiers,
+    final Listener listener
+  ) throws FileHashException {
+    return hash(dir, identifiers, algorithm, listener);
+  }
+
+  private boolean hash(
+    final Path dir,
+    final List<String> identifiers,
+    final HashAlgorithm algorithm,
+    final Listener listener
+  ) throws FileHashException {
+    isCancelled = false;
+    duplicates.set(0);
+    bytes.set(0);
+    hashedBytes.set(0);
+    final Manifest manifest = this.manifest;
+    // a cache of another algorithm can't be used, the cache holds no digests for a manifest
+    final DigestCache cache =
+      digestCache != null && digestCache.getAlgorithm() == algorithm && manifest == null
+        ? digestCache : null;
+    final List<String> extraAlgorithms =
+      manifest != null ? manifest.getAlgorithms() : Collections.<String>emptyList();
+    final ConcurrentHashMap<Object, LinkedFile> files = new ConcurrentHashMap<Object, LinkedFile>();
+    final boolean hasLinkCount = dir.getFileSystem().supportedFileAttributeViews().contains("unix");
+    final Set<Path> repeatedFiles = hasLinkCount ? findRepeatedFiles(dir, identifiers) : Collections.<Path>emptySet();
+    final ExecutorService executor = sharedExecutor != null ? sharedExecutor : newExecutor(threads);
+    final Deque<Future<FileDigests>> pending = new ArrayDeque<Future<FileDigests>>();
+    final int window = threads * TASKS_PER_THREAD;
+    int submitted = 0;
+    try {
+      for (int index = 0; index < identifiers.size(); ++index) {
+        while (submitted < identifiers.size() && submitted - index < window) {
+          final Path file = dir.resolve(identifiers.get(submitted));
+          final boolean isRepeated = !repeatedFiles.isEmpty() && repeatedFiles.contains(file.normalize());
+          pending.addLast(executor.submit(
+            () -> hashOnce(file, algorithm, extraAlgorithms, cache, files, hasLinkCount, isRepeated)
+          ));
+          ++submitted;
+        }
+        if (isCancelled) {
+          return false;
+        }
+        final String identifier = identifiers.get(index);
+        final FileDigests digests = await(pending.removeFirst(), identifier);
+        if (digests == null) {
+          return false;
+        }
+        if (manifest != null) {
+          manifest.add(identifier, digests);
+        }
+        listener.hashed(index, identifier, digests.getHashValue());
+      }
+    } finally {
+      if (executor == sharedExecutor) {
+        // tasks of this computation that are still pending must not occupy the shared pool
+        for (final Future<FileDigests> future : pending) {
+          future.cancel(true);
+        }
+      } else {
+        executor.shutdownNow();
+      }
+    }
+    return !isCancelled;
+  }
+
+  /*
+   * Returns the normalized paths that are listed more than once. Only these
+   * are kept after the scan, the identifiers that are already normalized
+   * aren't copied for it.
+   */
+  private static Set<Path> findRepeatedFiles(final Path dir, final List<String> identifiers) {
+    final Set<String> listed = new HashSet<String>();
+    final Set<Path> repeated = new HashSet<Path>();
+    for (final String identifier : identifiers) {
+      final Path file = dir.getFileSystem().getPath(identifier).normalize();
+      final String normalized = file.toString();
+      if (!listed.add(normalized.equals(identifier) ? identifier : normalized)) {
+        repeated.add(dir.resolve(file).normalize());
+      }
+    }
+    return repeated;
+  }
+
+  /*
+   * A file that may occur more than once in a computation, hashed by its
+   * first occurrence. It's forgotten when all of its links have been seen.
+   */
+  private static class LinkedFile {
+
+    final CompletableFuture<FileDigests> digests = new CompletableFuture<FileDigests>();
+    final AtomicInteger unseenLinks;
+
+    LinkedFile(final int links) {
+      unseenLinks = new AtomicInteger(links);
+    }
+  }
+
+  /*
+   * Hashes the file unless the same physical file was already hashed (or is
+   * being hashed by another thread) in this computation. A failure is passed
+   * on to all occurrences of the file. Files with a single link are hashed
+   * without being remembered unless their path is listed more than once,
+   * then they are remembered for the whole computation.
+   */
+  private FileDigests hashOnce(
+    final Path file,
+    final HashAlgorithm algorithm,
+    final List<String> extraAlgorithms,
+    final DigestCache cache,
+    final ConcurrentHashMap<Object, LinkedFile> files,
+    final boolean hasLinkCount,
+    final boolean isRepeated
+  ) throws NoSuchAlgorithmException, IOException {
+    Object fileKey;
+    final long size;
+    // without a link count every file may occur again
+    int links = Integer.MAX_VALUE;
+    try {
+      if (hasLinkCount) {
+        final Map<String, Object> attributes = Files.readAttributes(file, "unix:size,fileKey,nlink");
+        size = (Long) attributes.get("size");
+        fileKey = attributes.get("fileKey");
+        links = (Integer) attributes.get("nlink");
+      } else {
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        size = attributes.size();
+        fileKey = attributes.fileKey();
+      }
+      bytes.addAndGet(size);
+    } catch (NoSuchFileException e) {
+      // reported like a file that can't be opened for hashing
+      return FileUtil.getDigests(file, algorithm, extraAlgorithms);
+    }
+    if (isRepeated) {
+      // further occurrences may come under the same path, not only under other links
+      links = Integer.MAX_VALUE;
+    } else if (links <= 1) {
+      return hashFile(file, algorithm, extraAlgorithms, cache);
+    }
+    if (fileKey == null) {
+      fileKey = file.toAbsolutePath().normalize();
+    }
+    final LinkedFile linkedFile = new LinkedFile(links);
+    final LinkedFile previous = files.putIfAbsent(fileKey, linkedFile);
+    if (previous != null) {
+      duplicates.incrementAndGet();
+      if (previous.unseenLinks.decrementAndGet() == 0) {
+        files.remove(fileKey, previous);
+      }
+      final FileDigests digests = awaitDuplicate(previous.digests);
+      hashedBytes.addAndGet(size);
+      return digests;
+    }
+    linkedFile.unseenLinks.decrementAndGet();
+    try {
+      final FileDigests digests = hashFile(file, algorithm, extraAlgorithms, cache);
+      linkedFile.digests.complete(digests);
+      return digests;
+    } catch (NoSuchAlgorithmException | IOException | RuntimeException e) {
+      linkedFile.digests.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private FileDigests hashFile(
+    final Path file,
+    final HashAlgorithm algorithm,
+    final List<String> extraAlgorithms,
+    final DigestCache cache
+  ) throws NoSuchAlgorithmException, IOException {
+    return cache != null
+      ? new FileDigests(cache.getHash(file, hashedBytes::addAndGet))
+      : FileUtil.getDigests(file, algorithm, extraAlgorithms, hashedBytes::addAndGet);
+  }
+
+  private static FileDigests awaitDuplicate(final CompletableFuture<FileDigests> hashed)
+      throws NoSuchAlgorithmException, IOException {
+    try {
+      return hashed.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private FileDigests await(final Future<FileDigests> future, final String identifier)
+      throws FileHashException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      cancel();
+      return null;
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw new FileHashException(identifier, (IOException) cause);
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        // clearly a developer error, reraise instead of propagating
+        throw new RuntimeException(cause);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private static class HashThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final String prefix = "dip-hash-" + poolNumber.getAndIncrement() + "-";
+
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import lath.integrity.error.InvalidInputException;
+
+/**
+ * Interface for classes that must support writing to and reading from byte
+ * streams, e.g. in a binary format.
+ */
+public interface StreamSerializable extends Serializable {
+
+  /**
+   * Writes this object to os.
+   * @param os OutputStream
+   */
+  public void writeTo(OutputStream os) throws IOException;
+
+  /**
+   * Reads this object from is.
+   * @param is InputStream
+   */
+  public void readFrom(InputStream is) throws IOException, InvalidInputException;
+
+}
@@ -0,0 +1,457 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import lath.integrity.error.InvalidInputException;
+
+/**
+ * Minimal access to TAR archives (POSIX ustar, long names of pax and GNU
+ * tar, pax sizes of entries of 8 GiB and more), enough to hash the entries
+ * of a DIP in place and to append the integrity files. When the archive is
+ * opened only the headers are read, the data of the entries is skipped.
+ * Entries can then be hashed one after another in the order they are
+ * stored, so the archive is read sequentially.
+ */
+public class TarArchive implements Closeable {
+
+  public final static int BLOCK_SIZE = 512;
+  public final static Charset CHARSET = Charset.forName("UTF-8");
+
+  // pax and GNU headers hold a single name, anything larger is broken
+  private final static int MAX_EXTENDED_HEADER_SIZE = 1024 * 1024;
+
+  /**
+   * Entry of the archive, names are relative without leading ./ and
+   * without trailing / for directories.
+   */
+  public static class Entry {
+
+    private final String name;
+    private final char type;
+    private final String linkName;
+    private final long offset;
+    private final long size;
+
+    Entry(final String name, final char type, final String linkName, final long offset, final long size) {
+      this.name = name;
+      this.type = type;
+      this.linkName = linkName;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the name of the entry a hard link refers to.
+     * @return target of the link or null for other entries
+     */
+    public String getLinkName() {
+      return linkName;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public boolean isFile() {
+      return type == '0' || type == '\0' || type == '7';
+    }
+
+    /**
+     * A hard link has no data of its own, its content is the content of the
+     * entry it refers to.
+     * @return true if the entry is a hard link
+     */
+    public boolean isHardLink() {
+      return type == '1';
+    }
+
+    public boolean isDirectory() {
+      return type == '5';
+    }
+  }
+
+  private final FileChannel channel;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  // position of the end-of-archive marker, new entries are written there
+  private long endOffset = 0;
+
+  private TarArchive(final FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Opens the archive and reads the headers of all entries.
+   * @param file TAR file
+   * @param writable true if entries are going to be appended
+   * @return opened archive
+   * @throws InvalidInputException if a header is damaged
+   */
+  public static TarArchive open(final Path file, final boolean writable) throws IOException, InvalidInputException {
+    final FileChannel channel = writable
+      ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+      : FileChannel.open(file, StandardOpenOption.READ);
+    final TarArchive archive = new TarArchive(channel);
+    try {
+      archive.scan();
+    } catch (IOException | InvalidInputException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return archive;
+  }
+
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  private void scan() throws IOException, InvalidInputException {
+    final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+    final byte[] header = buffer.array();
+    long position = 0;
+    String longName = null;
+    String longLinkName = null;
+    // size of the next entry from a pax header, e.g. for entries of 8 GiB and more
+    long paxSize = -1;
+    while (true) {
+      buffer.clear();
+      while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) != -1) {
+        // read the whole block
+      }
+      if (buffer.hasRemaining() || isZero(header)) {
+        // end-of-archive marker, a missing marker is tolerated
+        endOffset = position;
+        return;
+      }
+      if (!hasValidChecksum(header)) {
+        throw invalidHeader(position);
+      }
+      final char type = (char) header[156];
+      long size = parseNumber(header, 124, 12, position);
+      final long dataOffset = position + BLOCK_SIZE;
+      switch (type) {
+        case 'L':
+          longName = trimName(readString(dataOffset, size, position));
+          break;
+        case 'K':
+          longLinkName = trimName(readString(dataOffset, size, position));
+          break;
+        case 'x':
+          final String paxHeader = readString(dataOffset, size, position);
+          final String path = getPaxValue(paxHeader, "path");
+          final String linkPath = getPaxValue(paxHeader, "linkpath");
+          final String paxSizeValue = getPaxValue(paxHeader, "size");
+          longName = path != null ? path : longName;
+          longLinkName = linkPath != null ? linkPath : longLinkName;
+          paxSize = paxSizeValue != null ? parsePaxSize(paxSizeValue, position) : paxSize;
+          break;
+        case 'g':
+          // global pax attributes don't affect names
+          break;
+        default:
+          if (paxSize >= 0) {
+            // a base-256 size is exact, so it must agree, an octal size is a placeholder
+            if ((header[124] & 0x80) != 0 && size != paxSize) {
+              throw new InvalidInputException(
+                "Size " + paxSize + " of the pax header conflicts with size " + size
+                  + " of the TAR header at offset " + position + "!",
+                InvalidInputException.ErrorType.SCHEMA_INVALID
+              );
+            }
+            size = paxSize;
+          }
+          final String name = longName != null ? longName : getHeaderName(header);
+          final String linkName = longLinkName != null ? longLinkName : getString(header, 157, 100);
+          final boolean hasData = type == '0' || type == '\0' || type == '7';
+          entries.add(new Entry(
+            normalizeName(name),
+            type,
+            type == '1' ? normalizeName(linkName) : null,
+            dataOffset,
+            hasData ? size : 0
+          ));
+          longName = null;
+          longLinkName = null;
+          paxSize = -1;
+          break;
+      }
+      // hard links and directories carry no data even if a size is given
+      final long dataSize = type == '1' || type == '2' || type == '5' ? 0 : size;
+      position = dataOffset + (dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+  }
+
+  private static boolean isZero(final byte[] block) {
+    for (final byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int computeChecksum(final byte[] header) {
+    int checksum = 0;
+    for (int i = 0; i < BLOCK_SIZE; ++i) {
+      // the checksum field itself counts as spaces
+      checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+    }
+    return checksum;
+  }
+
+  private static boolean hasValidChecksum(final byte[] header) {
+    final String value = getString(header, 148, 8).trim();
+    try {
+      return !value.isEmpty() && Integer.parseInt(value, 8) == computeChecksum(header);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private static InvalidInputException invalidHeader(final long position) {
+    return new InvalidInputException(
+      "Invalid TAR header at offset " + position + "!",
+      InvalidInputException.ErrorType.SCHEMA_INVALID
+    );
+  }
+
+  /*
+   * Numeric fields are octal or, for large values, base-256 with the
+   * highest bit of the first byte set.
+   */
+  private static long parseNumber(final byte[] header, final int offset, final int length, final long position)
+      throws InvalidInputException {
+    if ((header[offset] & 0x80) != 0) {
+      long value = header[offset] & 0x7f;
+      for (int i = offset + 1; i < offset + length; ++i) {
+        value = value << 8 | header[i] & 0xff;
+      }
+      return value;
+    }
+    final String value = getString(header, offset, length).trim();
+    try {
+      return value.isEmpty() ? 0 : Long.parseLong(value, 8);
+    } catch (NumberFormatException e) {
+      throw invalidHeader(position);
+    }
+  }
+
+  private static String getString(final byte[] header, final int offset, final int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      ++end;
+    }
+    return new String(header, offset, end - offset, CHARSET);
+  }
+
+  private static String getHeaderName(final byte[] header) {
+    final String name = getString(header, 0, 100);
+    if (!"ustar".equals(getString(header, 257, 6).trim())) {
+      return name;
+    }
+    final String prefix = getString(header, 345, 155);
+    return prefix.isEmpty() ? name : prefix + "/" + name;
+  }
+
+  private String readString(final long offset, final long size, final long position)
+      throws IOException, InvalidInputException {
+    if (size > MAX_EXTENDED_HEADER_SIZE) {
+      throw invalidHeader(position);
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) == -1) {
+        throw new EOFException();
+      }
+    }
+    return new String(buffer.array(), CHARSET);
+  }
+
+  private static String trimName(final String name) {
+    final int end = name.indexOf('\0');
+    return end < 0 ? name : name.substring(0, end);
+  }
+
+  /*
+   * Records of pax headers are "<length> <key>=<value>\n".
+   */
+  private static String getPaxValue(final String paxHeader, final String key) {
+    String value = null;
+    for (final String record : paxHeader.split("\n")) {
+      final int space = record.indexOf(' ');
+      if (space >= 0 && record.startsWith(key + "=", space + 1)) {
+        value = record.substring(space + key.length() + 2);
+      }
+    }
+    return value;
+  }
+
+  private static long parsePaxSize(final String value, final long position) throws InvalidInputException {
+    try {
+      final long size = Long.parseLong(value.trim());
+      if (size >= 0) {
+        return size;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new InvalidInputException(
+      "Invalid size \"" + value + "\" in the pax header at offset " + position + "!",
+      InvalidInputException.ErrorType.SCHEMA_INVALID
+    );
+  }
+
+  private static String normalizeName(String name) {
+    while (name.startsWith("./")) {
+      name = name.substring(2);
+    }
+    while (name.startsWith("/")) {
+      name = name.substring(1);
+    }
+    while (name.endsWith("/")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    return name;
+  }
+
+  /**
+   * Reads the data of a small entry, e.g. of an integrity file.
+   * @param entry file entry of this archive
+   * @return data of the entry
+   */
+  public byte[] read(final Entry entry) throws IOException {
+    if (entry.getSize() > Integer.MAX_VALUE) {
+      throw new IOException("Entry too large: " + entry.getName());
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate((int) entry.getSize());
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, entry.offset + buffer.position()) == -1) {
+        throw new EOFException(entry.getName());
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Updates the digest with the data of the given entry.
+   * @param entry file entry of this archive
+   * @param md digest to update
+   */
+  public void update(final Entry entry, final MessageDigest md) throws IOException {
+    update(entry, md, FileUtil.NO_PROGRESS);
+  }
+
+  /**
+   * Updates the digest with the data of the given entry and passes the
+   * number of bytes of each chunk to progress as soon as it's hashed.
+   * @param entry file entry of this archive
+   * @param md digest to update
+   * @param progress receives the number of bytes hashed
+   */
+  public void update(final Entry entry, final MessageDigest md, final LongConsumer progress) throws IOException {
+    FileUtil.update(md, channel, entry.offset, entry.getSize(), progress);
+  }
+
+  /**
+   * Appends a file entry to the archive and moves the end-of-archive marker
+   * behind it.
+   * @param name name of the entry with / as separator
+   * @param data content of the entry
+   */
+  public void append(final String name, final byte[] data) throws IOException {
+    final byte[] header = createHeader(name, data.length);
+    final long dataOffset = endOffset + BLOCK_SIZE;
+    final long paddedSize = ((long) data.length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    write(ByteBuffer.wrap(header), endOffset);
+    write(ByteBuffer.wrap(data), dataOffset);
+    write(ByteBuffer.allocate((int) (paddedSize - data.length)), dataOffset + data.length);
+    endOffset = dataOffset + paddedSize;
+    // two zero blocks end the archive
+    write(ByteBuffer.allocate(2 * BLOCK_SIZE), endOffset);
+    entries.add(new Entry(name, '0', null, dataOffset, data.length));
+  }
+
+  private void write(final ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static byte[] createHeader(final String name, final long size) throws IOException {
+    final byte[] header = new byte[BLOCK_SIZE];
+    final byte[] nameBytes = name.getBytes(CHARSET);
+    if (nameBytes.length <= 100) {
+      System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+    } else {
+      // split at a / into the prefix (at most 155 bytes) and the name (at most 100 bytes)
+      int split = -1;
+      for (int i = nameBytes.length - 1; i > 0; --i) {
+        if (nameBytes[i] == '/' && i <= 155 && nameBytes.length - i - 1 <= 100) {
+          split = i;
+          break;
+        }
+      }
+      if (split < 0) {
+        throw new IOException("Name too long for TAR header: " + name);
+      }
+      System.arraycopy(nameBytes, 0, header, 345, split);
+      System.arraycopy(nameBytes, split + 1, header, 0, nameBytes.length - split - 1);
+    }
+    putString(header, 100, "0000644");
+    putString(header, 108, "0000000");
+    putString(header, 116, "0000000");
+    putString(header, 124, String.format("%011o", size));
+    putString(header, 136, String.format("%011o", System.currentTimeMillis() / 1000));
+    header[156] = '0';
+    putString(header, 257, "ustar");
+    putString(header, 263, "00");
+    putString(header, 148, String.format("%06o", computeChecksum(header)));
+    header[155] = ' ';
+    return header;
+  }
+
+  private static void putString(final byte[] header, final int offset, final String value) {
+    final byte[] bytes = value.getBytes(CHARSET);
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -0,0 +1,220 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import lath.integrity.error.InvalidInputException;
+
+public class HashForestTest {
+
+  private static final int[] LEAF_COUNTS = {0, 1, 2, 3, 5, 8, 13, 31, 32, 33, 100, 1025};
+
+  private static HashForest<DigestHashValue> createForest(HashForest.Mode mode, int depth, List<byte[]> leafs) {
+    HashForest<DigestHashValue> hf = new HashForest<DigestHashValue>(mode, depth, NaiveTree.ALGORITHM);
+    for (byte[] leaf : leafs) {
+      hf.update(NaiveTree.ALGORITHM.createHashValue(leaf));
+    }
+    return hf;
+  }
+
+  private static byte[] write(HashForest<DigestHashValue> hf, HashForest.Format format) throws IOException {
+    hf.setFormat(format);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    hf.writeTo(out);
+    return out.toByteArray();
+  }
+
+  private static HashForest<DigestHashValue> read(byte[] data, boolean parallel)
+      throws IOException, InvalidInputException {
+    HashForest<DigestHashValue> hf = new HashForest<DigestHashValue>(DigestHashValue.class);
+    hf.setParallel(parallel);
+    hf.readFrom(new ByteArrayInputStream(data));
+    return hf;
+  }
+
+  /*
+   * Checks that the forest stores the nodes of the naive trees down to the
+   * given depth.
+   */
+  private static void assertTrees(String message, List<List<byte[]>> expected, int depth,
+      HashForest<DigestHashValue> hf) {
+    List<HashValue[]> trees = new ArrayList<HashValue[]>();
+    for (Object tree : hf.getTrees()) {
+      trees.add((HashValue[]) tree);
+    }
+    assertEquals(message, expected.size(), trees.size());
+    for (int i = 0; i < trees.size(); ++i) {
+      List<byte[]> nodes = expected.get(i);
+      int stored = Math.min(nodes.size(), PackedTree.nodeCount((nodes.size() + 1) / 2, depth));
+      assertEquals(message, stored, trees.get(i).length);
+      for (int node = 0; node < stored; ++node) {
+        assertArrayEquals(message + " tree " + i + " node " + node, nodes.get(node), trees.get(i)[node].getBytes());
+      }
+    }
+  }
+
+  private static void assertRoundTrips(HashForest.Mode mode, int depth, int storedDepth)
+      throws IOException, InvalidInputException {
+    for (int leafCount : LEAF_COUNTS) {
+      List<byte[]> leafs = NaiveTree.leafs(leafCount);
+      List<List<byte[]>> expected = NaiveTree.forest(leafs);
+      HashForest<DigestHashValue> hf = createForest(mode, depth, leafs);
+      String message = mode + " with " + leafCount + " leafs";
+      assertTrees(message, expected, storedDepth, hf);
+      for (HashForest.Format format : HashForest.Format.values()) {
+        for (boolean parallel : new boolean[] {false, true}) {
+          HashForest<DigestHashValue> copy = read(write(hf, format), parallel);
+          assertTrees(message + " as " + format, expected, storedDepth, copy);
+          assertEquals(mode, copy.getMode());
+          assertEquals(format, copy.getFormat());
+          assertTrue(copy.validate(hf));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void roundTripsFullForest() throws Exception {
+    assertRoundTrips(HashForest.Mode.FULL, 0, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void roundTripsRoots() throws Exception {
+    assertRoundTrips(HashForest.Mode.ROOTS, 0, 0);
+  }
+
+  @Test
+  public void roundTripsPartialForest() throws Exception {
+    assertRoundTrips(HashForest.Mode.PARTIAL, 1, 1);
+    assertRoundTrips(HashForest.Mode.PARTIAL, 3, 3);
+  }
+
+  @Test
+  public void roundTripsTextThroughReader() throws Exception {
+    List<byte[]> leafs = NaiveTree.leafs(21);
+    HashForest<DigestHashValue> hf = createForest(HashForest.Mode.FULL, 0, leafs);
+    StringWriter w = new StringWriter();
+    hf.writeTo(w);
+    HashForest<DigestHashValue> copy = new HashForest<DigestHashValue>(DigestHashValue.class);
+    copy.readFrom(new StringReader(w.toString()));
+    assertTrees("text", NaiveTree.forest(leafs), Integer.MAX_VALUE, copy);
+  }
+
+  private static void assertRejected(byte[] data, InvalidInputException.ErrorType errorType) throws IOException {
+    try {
+      read(data, false);
+      fail("corrupted integrity information was read");
+    } catch (InvalidInputException e) {
+      if (errorType != null) {
+        assertEquals(e.getMessage(), errorType, e.getErrorType());
+      }
+    }
+  }
+
+  @Test
+  public void rejectsCorruptedDigestInText() throws Exception {
+    List<byte[]> leafs = NaiveTree.leafs(100);
+    byte[] data = write(createForest(HashForest.Mode.FULL, 0, leafs), HashForest.Format.TEXT);
+    String text = new String(data, HashForest.CHARSET);
+    int index = text.indexOf(HashValue.bytes2hex(leafs.get(42)));
+    assertTrue(index > 0);
+    data[index] = (byte) (data[index] == '0' ? '1' : '0');
+    assertRejected(data, InvalidInputException.ErrorType.CHECKSUM_INVALID);
+  }
+
+  @Test
+  public void rejectsCorruptedDigestInBinary() throws Exception {
+    List<byte[]> leafs = NaiveTree.leafs(100);
+    byte[] data = write(createForest(HashForest.Mode.FULL, 0, leafs), HashForest.Format.BINARY);
+    byte[] leaf = leafs.get(42);
+    int index = -1;
+    for (int i = 0; i + leaf.length <= data.length && index < 0; ++i) {
+      if (Arrays.equals(leaf, 0, leaf.length, data, i, i + leaf.length)) {
+        index = i;
+      }
+    }
+    assertTrue(index > 0);
+    data[index] ^= 1;
+    assertRejected(data, InvalidInputException.ErrorType.CHECKSUM_INVALID);
+  }
+
+  @Test
+  public void rejectsCorruptedDeflateData() throws Exception {
+    byte[] data = write(createForest(HashForest.Mode.FULL, 0, NaiveTree.leafs(100)), HashForest.Format.DEFLATE);
+    data[data.length / 2] ^= 1;
+    assertRejected(data, null);
+  }
+
+  @Test
+  public void rejectsTruncatedData() throws Exception {
+    HashForest<DigestHashValue> hf = createForest(HashForest.Mode.FULL, 0, NaiveTree.leafs(100));
+    for (HashForest.Format format : HashForest.Format.values()) {
+      byte[] data = write(hf, format);
+      assertRejected(Arrays.copyOf(data, data.length / 2), null);
+    }
+  }
+
+  @Test
+  public void findsModifiedLeafs() throws Exception {
+    List<byte[]> leafs = NaiveTree.leafs(77);
+    HashForest<DigestHashValue> original = createForest(HashForest.Mode.FULL, 0, leafs);
+    HashForest<DigestHashValue> modified = read(write(original, HashForest.Format.BINARY), false);
+    BitSet expected = new BitSet();
+    for (int index : new int[] {0, 13, 63, 64, 76}) {
+      byte[] leaf = NaiveTree.leaf(index, 1);
+      leafs.set(index, leaf);
+      modified.replaceLeaf(index, NaiveTree.ALGORITHM.createHashValue(leaf));
+      expected.set(index);
+    }
+    assertTrees("replaced", NaiveTree.forest(leafs), Integer.MAX_VALUE, modified);
+    assertEquals(expected, modified.findModifiedLeafs(original));
+    assertFalse(modified.validate(original));
+  }
+
+  @Test
+  public void containsPrefixForest() throws Exception {
+    List<byte[]> leafs = NaiveTree.leafs(50);
+    HashForest<DigestHashValue> prefix = createForest(HashForest.Mode.FULL, 0, leafs);
+    HashForest<DigestHashValue> extended = read(write(prefix, HashForest.Format.TEXT), false);
+    for (int i = 0; i < 37; ++i) {
+      extended.update(NaiveTree.ALGORITHM.createHashValue(NaiveTree.leaf(50 + i, 0)));
+    }
+    assertTrue(extended.contains(prefix));
+    assertFalse(prefix.contains(extended));
+  }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Straightforward construction of hash trees that the packed trees are
+ * checked against. A tree is a list of its digests in level order.
+ */
+final class NaiveTree {
+
+  static final HashAlgorithm ALGORITHM = HashAlgorithm.SHA_256;
+
+  private NaiveTree() {
+  }
+
+  static byte[] leaf(int index, int version) {
+    MessageDigest md = ALGORITHM.newDigest();
+    md.update((index + ":" + version).getBytes(HashForest.CHARSET));
+    return md.digest();
+  }
+
+  static List<byte[]> leafs(int count) {
+    List<byte[]> leafs = new ArrayList<byte[]>();
+    for (int i = 0; i < count; ++i) {
+      leafs.add(leaf(i, 0));
+    }
+    return leafs;
+  }
+
+  /*
+   * Returns all nodes of the complete tree over count leafs starting at
+   * first.
+   */
+  static List<byte[]> tree(List<byte[]> leafs, int first, int count) {
+    List<List<byte[]>> levels = new ArrayList<List<byte[]>>();
+    List<byte[]> level = new ArrayList<byte[]>(leafs.subList(first, first + count));
+    levels.add(level);
+    while (level.size() > 1) {
+      List<byte[]> parents = new ArrayList<byte[]>();
+      for (int i = 0; i < level.size(); i += 2) {
+        MessageDigest md = ALGORITHM.newDigest();
+        md.update(level.get(i));
+        md.update(level.get(i + 1));
+        parents.add(md.digest());
+      }
+      levels.add(parents);
+      level = parents;
+    }
+    Collections.reverse(levels);
+    List<byte[]> nodes = new ArrayList<byte[]>();
+    for (List<byte[]> l : levels) {
+      nodes.addAll(l);
+    }
+    return nodes;
+  }
+
+  /*
+   * Returns the trees of a forest, one complete tree for each set bit of the
+   * leaf count, largest first.
+   */
+  static List<List<byte[]>> forest(List<byte[]> leafs) {
+    List<List<byte[]>> forest = new ArrayList<List<byte[]>>();
+    int first = 0;
+    for (int bit = 30; bit >= 0; --bit) {
+      if ((leafs.size() & 1 << bit) != 0) {
+        forest.add(tree(leafs, first, 1 << bit));
+        first += 1 << bit;
+      }
+    }
+    return forest;
+  }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.hashforest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class PackedTreeTest {
+
+  private static void assertNodes(List<byte[]> expected, PackedTree tree) {
+    assertTrue(tree.nodeCount() <= expected.size());
+    for (int node = 0; node < tree.nodeCount(); ++node) {
+      assertArrayEquals("node " + node, expected.get(node), tree.getNode(node));
+    }
+  }
+
+  /*
+   * Merges the leafs pairwise, like the forest does while it is updated.
+   */
+  private static PackedTree mergeLeafs(List<byte[]> leafs, int first, int count, int depth) {
+    if (count == 1) {
+      return PackedTree.leaf(leafs.get(first));
+    }
+    MessageDigest md = NaiveTree.ALGORITHM.newDigest();
+    PackedTree left = mergeLeafs(leafs, first, count / 2, depth);
+    PackedTree right = mergeLeafs(leafs, first + count / 2, count / 2, depth);
+    return PackedTree.merge(left, right, md, depth);
+  }
+
+  private static PackedTree buildTree(List<byte[]> leafs) {
+    PackedTree tree = PackedTree.allocate(leafs.size(), NaiveTree.ALGORITHM.getDigestLength());
+    for (int i = 0; i < leafs.size(); ++i) {
+      tree.setNode(tree.leafNode(i), leafs.get(i));
+    }
+    tree.hashSubtree(0, leafs.size(), NaiveTree.ALGORITHM.newDigest());
+    return tree;
+  }
+
+  @Test
+  public void mergesToNaiveTree() {
+    for (int leafCount = 1; leafCount <= 256; leafCount *= 2) {
+      List<byte[]> leafs = NaiveTree.leafs(leafCount);
+      assertNodes(NaiveTree.tree(leafs, 0, leafCount), mergeLeafs(leafs, 0, leafCount, Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void mergesOnlyStoredLevels() {
+    List<byte[]> leafs = NaiveTree.leafs(64);
+    List<byte[]> expected = NaiveTree.tree(leafs, 0, 64);
+    for (int depth = 0; depth <= 6; ++depth) {
+      PackedTree tree = mergeLeafs(leafs, 0, 64, depth);
+      assertEquals((2 << depth) - 1, tree.nodeCount());
+      assertNodes(expected, tree);
+    }
+  }
+
+  @Test
+  public void buildsNaiveTree() {
+    for (int leafCount = 1; leafCount <= 4096; leafCount *= 4) {
+      List<byte[]> leafs = NaiveTree.leafs(leafCount);
+      List<byte[]> expected = NaiveTree.tree(leafs, 0, leafCount);
+      assertNodes(expected, buildTree(leafs));
+      PackedTree tree = PackedTree.allocate(leafCount, NaiveTree.ALGORITHM.getDigestLength());
+      for (int i = 0; i < leafCount; ++i) {
+        tree.setNode(tree.leafNode(i), leafs.get(i));
+      }
+      ForkJoinPool.commonPool().invoke(tree.buildTask(NaiveTree.ALGORITHM));
+      assertNodes(expected, tree);
+    }
+  }
+
+  @Test
+  public void replacesLeafAndPath() {
+    List<byte[]> leafs = NaiveTree.leafs(32);
+    PackedTree tree = buildTree(leafs);
+    PackedTree original = tree.prune(Integer.MAX_VALUE);
+    MessageDigest md = NaiveTree.ALGORITHM.newDigest();
+    int version = 0;
+    for (int index : new int[] {0, 7, 31, 7}) {
+      byte[] leaf = NaiveTree.leaf(index, ++version);
+      leafs.set(index, leaf);
+      tree.replaceLeaf(index, leaf, md);
+      assertNodes(NaiveTree.tree(leafs, 0, 32), tree);
+    }
+    assertFalse(tree.rootEquals(original));
+    assertTrue(original.rootEquals(buildTree(NaiveTree.leafs(32))));
+  }
+
+  @Test
+  public void prunesToDepth() {
+    List<byte[]> leafs = NaiveTree.leafs(16);
+    List<byte[]> expected = NaiveTree.tree(leafs, 0, 16);
+    PackedTree tree = buildTree(leafs);
+    assertEquals(1, tree.prune().nodeCount());
+    for (int depth = 0; depth <= 5; ++depth) {
+      PackedTree pruned = tree.prune(depth);
+      assertEquals(PackedTree.nodeCount(16, depth), pruned.nodeCount());
+      assertNodes(expected, pruned);
+    }
+  }
+
+}
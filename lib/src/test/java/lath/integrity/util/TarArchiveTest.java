@@ -0,0 +1,252 @@
+/**
+ * DIP Integrity Library for generation and validation of integrity information of DIP
+ * Copyright (C) 2021 Tony Grochow (tony.grochow@la.thueringen.de)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package lath.integrity.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import lath.integrity.error.InvalidInputException;
+
+public class TarArchiveTest {
+
+  private static final String LONG_NAME = "dip/" + repeat("long-directory-name/", 8) + "file.txt";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static String repeat(String s, int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  private static void put(byte[] header, int offset, String value) {
+    byte[] bytes = value.getBytes(TarArchive.CHARSET);
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+
+  /*
+   * Writes a ustar header followed by the data padded to whole blocks.
+   */
+  private static void writeEntry(ByteArrayOutputStream out, String name, char type, String linkName, byte[] data,
+      long size) {
+    byte[] header = new byte[TarArchive.BLOCK_SIZE];
+    put(header, 0, name);
+    put(header, 100, "0000644");
+    put(header, 108, "0000000");
+    put(header, 116, "0000000");
+    if (size >= 0) {
+      put(header, 124, String.format("%011o", size));
+    } else {
+      // base-256 encoding of the data size
+      header[124] = (byte) 0x80;
+      for (int i = 0; i < 8; ++i) {
+        header[135 - i] = (byte) ((long) data.length >> 8 * i);
+      }
+    }
+    put(header, 136, "00000000000");
+    header[156] = (byte) type;
+    if (linkName != null) {
+      put(header, 157, linkName);
+    }
+    put(header, 257, "ustar");
+    put(header, 263, "00");
+    int checksum = 0;
+    for (int i = 0; i < TarArchive.BLOCK_SIZE; ++i) {
+      checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+    }
+    put(header, 148, String.format("%06o", checksum));
+    header[155] = ' ';
+    out.write(header, 0, header.length);
+    out.write(data, 0, data.length);
+    int padding = (TarArchive.BLOCK_SIZE - data.length % TarArchive.BLOCK_SIZE) % TarArchive.BLOCK_SIZE;
+    out.write(new byte[padding], 0, padding);
+  }
+
+  private static void writeEntry(ByteArrayOutputStream out, String name, char type, String linkName, byte[] data) {
+    writeEntry(out, name, type, linkName, data, data.length);
+  }
+
+  /*
+   * Returns a pax record "<length> <key>=<value>\n", the length includes
+   * the digits of the length itself.
+   */
+  private static String paxRecord(String key, String value) {
+    String record = " " + key + "=" + value + "\n";
+    int length = record.length() + Integer.toString(record.length()).length();
+    if (Integer.toString(length).length() > Integer.toString(record.length()).length()) {
+      ++length;
+    }
+    return length + record;
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(TarArchive.CHARSET);
+  }
+
+  private Path writeArchive(ByteArrayOutputStream out) throws IOException {
+    out.write(new byte[2 * TarArchive.BLOCK_SIZE], 0, 2 * TarArchive.BLOCK_SIZE);
+    Path file = folder.newFile("test.tar").toPath();
+    Files.write(file, out.toByteArray());
+    return file;
+  }
+
+  private static byte[] digest(byte[] data) throws Exception {
+    return MessageDigest.getInstance("SHA-512").digest(data);
+  }
+
+  private static byte[] digest(TarArchive archive, TarArchive.Entry entry) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("SHA-512");
+    archive.update(entry, md);
+    return md.digest();
+  }
+
+  @Test
+  public void readsExtendedEntries() throws Exception {
+    byte[] paxData = bytes(repeat("pax data ", 100));
+    byte[] longData = bytes("long name data");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "dip/", '5', null, new byte[0]);
+    // the octal size of the header is a placeholder, the pax header holds the size
+    writeEntry(out, "PaxHeaders/pax.txt", 'x', null,
+      bytes(paxRecord("path", "dip/pax.txt") + paxRecord("size", Integer.toString(paxData.length))));
+    writeEntry(out, "dip/pax-placeholder", '0', null, paxData, 0);
+    writeEntry(out, "././@LongLink", 'L', null, bytes(LONG_NAME + "\0"));
+    writeEntry(out, LONG_NAME.substring(0, 99), '0', null, longData);
+    writeEntry(out, "././@LongLink", 'K', null, bytes(LONG_NAME + "\0"));
+    writeEntry(out, "dip/link.txt", '1', LONG_NAME.substring(0, 99), new byte[0]);
+    writeEntry(out, "./dip/short.txt", '0', null, bytes("short"));
+
+    try (TarArchive archive = TarArchive.open(writeArchive(out), false)) {
+      List<TarArchive.Entry> entries = archive.getEntries();
+      assertEquals(5, entries.size());
+
+      assertEquals("dip", entries.get(0).getName());
+      assertTrue(entries.get(0).isDirectory());
+
+      TarArchive.Entry pax = entries.get(1);
+      assertEquals("dip/pax.txt", pax.getName());
+      assertTrue(pax.isFile());
+      assertEquals(paxData.length, pax.getSize());
+      assertArrayEquals(paxData, archive.read(pax));
+      assertArrayEquals(digest(paxData), digest(archive, pax));
+
+      TarArchive.Entry longEntry = entries.get(2);
+      assertEquals(LONG_NAME, longEntry.getName());
+      assertNull(longEntry.getLinkName());
+      assertArrayEquals(longData, archive.read(longEntry));
+
+      TarArchive.Entry link = entries.get(3);
+      assertEquals("dip/link.txt", link.getName());
+      assertTrue(link.isHardLink());
+      assertFalse(link.isFile());
+      assertEquals(LONG_NAME, link.getLinkName());
+      assertEquals(0, link.getSize());
+
+      assertEquals("dip/short.txt", entries.get(4).getName());
+      assertArrayEquals(bytes("short"), archive.read(entries.get(4)));
+    }
+  }
+
+  @Test
+  public void acceptsMatchingBase256Size() throws Exception {
+    byte[] data = bytes("base-256");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "PaxHeaders/file", 'x', null, bytes(paxRecord("size", Integer.toString(data.length))));
+    writeEntry(out, "file", '0', null, data, -1);
+    try (TarArchive archive = TarArchive.open(writeArchive(out), false)) {
+      assertEquals(data.length, archive.getEntries().get(0).getSize());
+    }
+  }
+
+  private void assertRejected(ByteArrayOutputStream out) throws IOException {
+    try (TarArchive archive = TarArchive.open(writeArchive(out), false)) {
+      fail("invalid archive was read");
+    } catch (InvalidInputException e) {
+      assertEquals(InvalidInputException.ErrorType.SCHEMA_INVALID, e.getErrorType());
+    }
+  }
+
+  @Test
+  public void rejectsConflictingPaxSize() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "PaxHeaders/file", 'x', null, bytes(paxRecord("size", "3")));
+    writeEntry(out, "file", '0', null, bytes("base-256"), -1);
+    assertRejected(out);
+  }
+
+  @Test
+  public void rejectsInvalidPaxSize() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "PaxHeaders/file", 'x', null, bytes(paxRecord("size", "-1")));
+    writeEntry(out, "file", '0', null, bytes("data"));
+    assertRejected(out);
+  }
+
+  @Test
+  public void rejectsDamagedHeader() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "file", '0', null, bytes("data"));
+    byte[] data = out.toByteArray();
+    data[0] = 'F';
+    out.reset();
+    out.write(data, 0, data.length);
+    assertRejected(out);
+  }
+
+  @Test
+  public void appendsEntries() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "dip/file.txt", '0', null, bytes("data"));
+    Path file = writeArchive(out);
+    byte[] appended = bytes(repeat("appended ", 200));
+    try (TarArchive archive = TarArchive.open(file, true)) {
+      archive.append("dip/" + repeat("long-directory-name/", 4) + "new.txt", appended);
+      archive.append("dip/empty.txt", new byte[0]);
+    }
+    try (TarArchive archive = TarArchive.open(file, false)) {
+      List<TarArchive.Entry> entries = archive.getEntries();
+      assertEquals(3, entries.size());
+      assertArrayEquals(bytes("data"), archive.read(entries.get(0)));
+      assertEquals("dip/" + repeat("long-directory-name/", 4) + "new.txt", entries.get(1).getName());
+      assertArrayEquals(appended, archive.read(entries.get(1)));
+      assertEquals("dip/empty.txt", entries.get(2).getName());
+      assertEquals(0, entries.get(2).getSize());
+    }
+  }
+
+}